@@ -0,0 +1,99 @@
+package net.bb2.modroller.benchmarks;
+
+import net.bb2.modroller.config.ModrollerConfig;
+import org.eclipse.jgit.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generated stand-ins for a Blood Bowl 2 install and the mod repo, so benchmarks need neither the game nor a network
+ */
+final class Fixtures {
+
+	private Fixtures() {
+
+	}
+
+	/**
+	 * Creates an empty Blood Bowl 2 directory with Data and a mod repo beside it, and points the config at them
+	 */
+	static Path createBb2Dir() throws IOException {
+		Path bb2Dir = Files.createTempDirectory("modroller-bench");
+		Files.createDirectories(bb2Dir.resolve("Data"));
+		Path modRepoDir = bb2Dir.resolve("Modroller").resolve("bb2modrepo");
+		Files.createDirectories(modRepoDir);
+
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		config.setBb2Dir(bb2Dir.toFile());
+		config.setModRepoDir(modRepoDir.toFile());
+		return bb2Dir;
+	}
+
+	static void delete(Path dir) throws IOException {
+		if (dir != null) {
+			FileUtils.delete(dir.toFile(), FileUtils.RECURSIVE | FileUtils.SKIP_MISSING | FileUtils.RETRY);
+		}
+	}
+
+	/**
+	 * Writes an XML file laid out like Cyanide's rules data, one element per row with a few child values each
+	 */
+	static void writeRulesXml(Path xmlFile, int rows) throws IOException {
+		Files.createDirectories(xmlFile.getParent());
+		Random random = new Random(rows);
+		try (Writer writer = Files.newBufferedWriter(xmlFile, StandardCharsets.UTF_8)) {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Datas>\n");
+			for (int row = 0; row < rows; row++) {
+				writer.write("   <Skill Id=\"" + row + "\" Category=\"" + (row % 8) + "\">\n");
+				writer.write("      <Name>SKILL_" + row + "</Name>\n");
+				writer.write("      <Cost>" + random.nextInt(100) + "</Cost>\n");
+				writer.write("      <Modifier>" + random.nextInt(10) + "</Modifier>\n");
+				writer.write("      <Description>Generated skill number " + row + " for benchmarking</Description>\n");
+				writer.write("   </Skill>\n");
+			}
+			writer.write("</Datas>\n");
+		}
+	}
+
+	/**
+	 * @return Replacement for a row written by {@link #writeRulesXml}
+	 */
+	static String skillFragment(int row) {
+		return "<Skill Id=\"" + row + "\" Category=\"0\"><Name>MODDED_" + row + "</Name><Cost>1</Cost>"
+				+ "<Modifier>9</Modifier><Description>Modded</Description></Skill>";
+	}
+
+	/**
+	 * Writes a mod which replaces the given number of files, each of the given size, in Data/Textures
+	 *
+	 * @return The mod's directory within the mod repo
+	 */
+	static File writeFileMod(String modDirName, int files, int fileSize) throws IOException {
+		Path modDir = ModrollerConfig.getInstance().getModRepoDir().toPath().resolve(modDirName);
+		Files.createDirectories(modDir);
+		Random random = new Random(files);
+		byte[] content = new byte[fileSize];
+
+		StringBuilder fileMap = new StringBuilder();
+		for (int file = 0; file < files; file++) {
+			random.nextBytes(content);
+			String fileName = "texture_" + file + ".dds";
+			Files.write(modDir.resolve(fileName), content);
+			fileMap.append(file == 0 ? "" : ",").append('"').append(fileName).append("\":\"Textures\"");
+		}
+		writeModJson(modDir, "File mod " + modDirName, "\"files\":{" + fileMap + "}");
+		return modDir.toFile();
+	}
+
+	static void writeModJson(Path modDir, String name, String content) throws IOException {
+		Files.createDirectories(modDir);
+		String json = "{\"name\":\"" + name + "\",\"category\":\"Benchmark\",\"description\":\"Generated\"," + content + "}";
+		Files.write(modDir.resolve("mod.json"), json.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,89 @@
+package net.bb2.modroller.benchmarks;
+
+import net.bb2.modroller.config.ModInfo;
+import net.bb2.modroller.config.ModParser;
+import net.bb2.modroller.scenes.ModApplicator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Installing and uninstalling a mod which replaces many Data files, each of which has an original to back up
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModApplicatorBenchmark {
+
+	private static final String MOD_NAME = "textures";
+
+	@Param({"500"})
+	public int files;
+
+	@Param({"65536"})
+	public int fileSize;
+
+	private final ModApplicator modApplicator = new ModApplicator(line -> { });
+	private Path bb2Dir;
+	private Map<File, ModInfo> repoMods;
+	private Set<String> withMod;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		bb2Dir = Fixtures.createBb2Dir();
+		Fixtures.writeFileMod(MOD_NAME, files, fileSize);
+
+		Path texturesDir = bb2Dir.resolve("Data").resolve("Textures");
+		Files.createDirectories(texturesDir);
+		byte[] content = new byte[fileSize];
+		Random random = new Random(fileSize);
+		for (int file = 0; file < files; file++) {
+			random.nextBytes(content);
+			Files.write(texturesDir.resolve("texture_" + file + ".dds"), content);
+		}
+
+		repoMods = new ModParser().getRepoMods();
+		withMod = Collections.singleton(MOD_NAME);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws Exception {
+		Fixtures.delete(bb2Dir);
+	}
+
+	/**
+	 * Installs then uninstalls, so every invocation starts from the original Data
+	 */
+	@Benchmark
+	public void installAndUninstall() throws Exception {
+		modApplicator.applyTransaction(repoMods, withMod);
+		modApplicator.applyTransaction(repoMods, Collections.emptySet());
+	}
+
+	@Benchmark
+	public Object plan() throws Exception {
+		return modApplicator.plan(repoMods, withMod);
+	}
+}
@@ -0,0 +1,103 @@
+package net.bb2.modroller.benchmarks;
+
+import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.config.ModParser;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the mod catalog from a synthetic mod repo of thousands of mods
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModParserBenchmark {
+
+	@Param({"1000", "5000"})
+	public int mods;
+
+	private Path bb2Dir;
+	private File modRepoDir;
+	private Git git;
+	private int commits;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		bb2Dir = Fixtures.createBb2Dir();
+		modRepoDir = ModrollerConfig.getInstance().getModRepoDir();
+		for (int mod = 0; mod < mods; mod++) {
+			writeMod(mod, "Mod " + mod);
+		}
+
+		git = Git.init().setDirectory(modRepoDir).call();
+		git.add().addFilepattern(".").call();
+		git.commit().setMessage("Generated mods").setSign(false).call();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws Exception {
+		git.close();
+		Fixtures.delete(bb2Dir);
+	}
+
+	/**
+	 * Parses every mod.json from the working tree, as without a Git checkout
+	 */
+	@Benchmark
+	public Map<?, ?> workingTree() throws Exception {
+		File dotGit = modRepoDir.toPath().resolve(".git").toFile();
+		File hiddenGit = modRepoDir.toPath().resolve(".git-hidden").toFile();
+		FileUtils.rename(dotGit, hiddenGit);
+		try {
+			return new ModParser().getRepoMods();
+		} finally {
+			FileUtils.rename(hiddenGit, dotGit);
+		}
+	}
+
+	/**
+	 * Loads the catalog of an unchanged HEAD, as on every launch without an update
+	 */
+	@Benchmark
+	public Map<?, ?> unchangedHead() throws Exception {
+		return new ModParser().getRepoMods();
+	}
+
+	/**
+	 * Loads the catalog after an update which changed one mod, so only its mod.json is parsed again
+	 */
+	@Benchmark
+	public Map<?, ?> oneModChanged() throws Exception {
+		commits++;
+		writeMod(commits % mods, "Mod " + commits);
+		git.add().addFilepattern(".").call();
+		git.commit().setMessage("Update " + commits).setSign(false).call();
+		return new ModParser().getRepoMods();
+	}
+
+	private void writeMod(int mod, String name) throws Exception {
+		Fixtures.writeModJson(modRepoDir.toPath().resolve(String.format("mod%05d", mod)), name,
+				"\"files\":{\"file.dds\":\"Textures\"},\"xml\":{\"Rules/Skills.xml\":{\"/Datas/Skill[@Id='" + mod + "']\":\"<Skill/>\"}}");
+	}
+}
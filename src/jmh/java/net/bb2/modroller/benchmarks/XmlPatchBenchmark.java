@@ -0,0 +1,98 @@
+package net.bb2.modroller.benchmarks;
+
+import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.scenes.ModXmlApplicator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Patching and unpatching one large rules file, with either XML engine
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlPatchBenchmark {
+
+	@Param({"2000", "20000"})
+	public int rows;
+
+	@Param({"50"})
+	public int patches;
+
+	@Param({"streaming", "dom"})
+	public String engine;
+
+	private final ModXmlApplicator modXmlApplicator = new ModXmlApplicator();
+	private Path workDir;
+	private Path originalFile;
+	private Path patchedFile;
+	private Path targetFile;
+	private File modDir;
+	private List<ModXmlApplicator.XmlPatch> xmlPatches;
+	private Set<String> xpaths;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		ModrollerConfig.getInstance().setStreamingXml(engine.equals("streaming"));
+		workDir = Files.createTempDirectory("modroller-xml-bench");
+		originalFile = workDir.resolve("original.xml");
+		Fixtures.writeRulesXml(originalFile, rows);
+		modDir = workDir.resolve("mod").toFile();
+
+		xmlPatches = new ArrayList<>();
+		xpaths = new LinkedHashSet<>();
+		for (int patch = 0; patch < patches; patch++) {
+			// Spread over the file, so streaming has to read all of it
+			int row = (int)((long)patch * rows / patches);
+			String xpath = "/Datas/Skill[@Id='" + row + "']";
+			xmlPatches.add(new ModXmlApplicator.XmlPatch(modDir, xpath, Fixtures.skillFragment(row)));
+			xpaths.add(xpath);
+		}
+
+		patchedFile = workDir.resolve("patched.xml");
+		Files.copy(originalFile, patchedFile);
+		modXmlApplicator.applyAll(patchedFile.toFile(), xmlPatches);
+		targetFile = workDir.resolve("target.xml");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws Exception {
+		Fixtures.delete(workDir);
+	}
+
+	@Benchmark
+	public void apply() throws Exception {
+		Files.copy(originalFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+		modXmlApplicator.applyAll(targetFile.toFile(), xmlPatches);
+	}
+
+	@Benchmark
+	public void remove() throws Exception {
+		Files.copy(patchedFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+		modXmlApplicator.remove(targetFile.toFile(), originalFile.toFile(), xpaths);
+	}
+}
@@ -9,6 +9,7 @@ module modroller {
 	requires java.xml;
 	requires java.security.jgss;
 	requires java.management;
+	requires java.prefs;
 	requires jdk.crypto.ec;
 	uses org.eclipse.jgit.transport.SshSessionFactory;
 }
@@ -1,54 +1,245 @@
 package net.bb2.modroller;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Finds the Blood Bowl 2 executable across Steam libraries.
+ *
+ * Steam installs list their libraries in libraryfolders.vdf, and each library records installed games in
+ * appmanifest_*.acf files. Every candidate is probed on its own daemon thread and given up on after a fixed time of
+ * its own, so a slow or unreachable drive only costs its own probe and never cuts short the others. The last install
+ * found is remembered between launches and checked first.
+ */
 public class BBDiscovery {
 
+	private final static String BB2_APP_ID = "236690";
+	private final static String BB2_INSTALL_DIR = "Blood Bowl 2";
+	private final static long PROBE_TIMEOUT_MILLIS = 5000;
+	private final static String PREFERENCE_KEY = "bb2Executable";
+
 	private final static List<String> expectedDirsWindows = List.of("Program Files (x86)", "Steam", "steamapps", "common", "Blood Bowl 2");
 	private final static List<String> expectedDirsMac = List.of("Library", "Application Support", "Steam", "steamapps", "common", "Blood Bowl 2");
 
+	private final static Pattern VDF_TOKEN = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"|([{}])");
+
+	private final String executableFileName = OsCheck.IS_MAC_OS ? "BloodBowl2.app" : "BloodBowl2.exe";
+	private final Preferences preferences = Preferences.userNodeForPackage(BBDiscovery.class);
+
 	public Optional<File> findBB2Exe() {
-		String executableFileName = OsCheck.IS_MAC_OS ? "BloodBowl2.app" : "BloodBowl2.exe";
-		List<String> expectedDirs = OsCheck.IS_MAC_OS ? expectedDirsMac : expectedDirsWindows;
+		ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "bb2-discovery");
+			thread.setDaemon(true);
+			return thread;
+		});
+		CompletionService<Optional<File>> probes = new ExecutorCompletionService<>(executor);
+		Map<Future<Optional<File>>, Long> probeDeadlines = new LinkedHashMap<>();
+		Map<Future<List<Path>>, Long> libraryLists = new LinkedHashMap<>();
+		Set<Path> probedLibraries = new LinkedHashSet<>();
 
-		for (File driveRoot : File.listRoots()) {
-			Path cursor = driveRoot.toPath();
-			if (OsCheck.IS_MAC_OS) {
-				cursor = new File(System.getProperty("user.home")).toPath();
+		try {
+			String remembered = preferences.get(PREFERENCE_KEY, null);
+			if (remembered != null) {
+				File rememberedFile = new File(remembered);
+				probeDeadlines.put(probes.submit(() -> isExecutable(rememberedFile) ? Optional.of(rememberedFile) : Optional.empty()), deadline());
 			}
-			for (String expectedDir : expectedDirs) {
-				cursor = cursor.resolve(expectedDir);
+
+			List<Path> steamDirs = getSteamDirs();
+			for (Path steamDir : steamDirs) {
+				if (probedLibraries.add(steamDir)) {
+					probeDeadlines.put(probes.submit(() -> probeLibrary(steamDir)), deadline());
+				}
+			}
+			for (Path steamDir : steamDirs) {
+				libraryLists.put(executor.submit(() -> readLibraryFolders(steamDir)), deadline());
 			}
 
-			File possibleDir = cursor.toFile();
-			if (possibleDir.exists() && possibleDir.isDirectory()) {
-				File executable = cursor.resolve(executableFileName).toFile();
-				if (executable.exists()) {
-					return Optional.of(executable);
+			while (!probeDeadlines.isEmpty() || !libraryLists.isEmpty()) {
+				long now = System.currentTimeMillis();
+
+				// Libraries listed by Steam are probed as soon as their list has been read
+				for (Iterator<Map.Entry<Future<List<Path>>, Long>> iterator = libraryLists.entrySet().iterator(); iterator.hasNext(); ) {
+					Map.Entry<Future<List<Path>>, Long> libraryList = iterator.next();
+					if (libraryList.getKey().isDone()) {
+						iterator.remove();
+						try {
+							for (Path library : libraryList.getKey().get()) {
+								if (probedLibraries.add(library)) {
+									probeDeadlines.put(probes.submit(() -> probeLibrary(library)), deadline());
+								}
+							}
+						} catch (ExecutionException e) {
+							System.err.println(e.getCause());
+						}
+					} else if (now >= libraryList.getValue()) {
+						iterator.remove();
+						libraryList.getKey().cancel(true);
+					}
+				}
+
+				// Each probe only gets its own time, however long the others take
+				for (Iterator<Map.Entry<Future<Optional<File>>, Long>> iterator = probeDeadlines.entrySet().iterator(); iterator.hasNext(); ) {
+					Map.Entry<Future<Optional<File>>, Long> probeDeadline = iterator.next();
+					if (!probeDeadline.getKey().isDone() && now >= probeDeadline.getValue()) {
+						iterator.remove();
+						probeDeadline.getKey().cancel(true);
+					}
+				}
+
+				Future<Optional<File>> probe = probes.poll(50, TimeUnit.MILLISECONDS);
+				if (probe == null || probeDeadlines.remove(probe) == null) {
+					// Nothing finished, or only a probe which was already given up on
+					continue;
+				}
+				try {
+					Optional<File> executable = probe.get();
+					if (executable.isPresent()) {
+						remember(executable.get());
+						return executable;
+					}
+				} catch (ExecutionException e) {
+					System.err.println(e.getCause());
 				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Probes stuck on an unreachable drive are left to finish on their daemon threads
+			executor.shutdownNow();
+		}
+
+		return Optional.empty();
+	}
+
+	private static long deadline() {
+		return System.currentTimeMillis() + PROBE_TIMEOUT_MILLIS;
+	}
+
+	/**
+	 * Records the executable to check first on the next launch
+	 */
+	public void remember(File bb2Exe) {
+		preferences.put(PREFERENCE_KEY, bb2Exe.getAbsolutePath());
+	}
 
-			// Try without Program Files
-			cursor = driveRoot.toPath();
-			ArrayList<String> trimmed = new ArrayList<>(expectedDirs);
-			trimmed.remove(0);
-			for (String expectedDir : trimmed) {
+	/**
+	 * @return Steam installs to read library lists from, also tried as libraries themselves
+	 */
+	private List<Path> getSteamDirs() {
+		List<Path> steamDirs = new ArrayList<>();
+		Path home = new File(System.getProperty("user.home")).toPath();
+		if (OsCheck.IS_MAC_OS) {
+			Path cursor = home;
+			for (String expectedDir : expectedDirsMac.subList(0, 3)) {
 				cursor = cursor.resolve(expectedDir);
 			}
+			steamDirs.add(cursor);
+		} else if (OsCheck.getOperatingSystemType() == OsCheck.OSType.Linux) {
+			steamDirs.add(home.resolve(".steam").resolve("steam"));
+			steamDirs.add(home.resolve(".local").resolve("share").resolve("Steam"));
+		}
+
+		for (File driveRoot : File.listRoots()) {
+			Path root = driveRoot.toPath();
+			steamDirs.add(root.resolve(expectedDirsWindows.get(0)).resolve(expectedDirsWindows.get(1)));
+			steamDirs.add(root.resolve("Program Files").resolve("Steam"));
+			steamDirs.add(root.resolve("Steam"));
+			steamDirs.add(root.resolve("SteamLibrary"));
+		}
+		return steamDirs;
+	}
 
-			possibleDir = cursor.toFile();
-			if (possibleDir.exists() && possibleDir.isDirectory()) {
-				File executable = cursor.resolve(executableFileName).toFile();
-				if (executable.exists()) {
-					return Optional.of(executable);
+	private Optional<File> probeLibrary(Path library) throws IOException {
+		Path steamApps = library.resolve("steamapps");
+		if (!steamApps.toFile().isDirectory()) {
+			return Optional.empty();
+		}
+
+		String installDir = BB2_INSTALL_DIR;
+		File manifest = steamApps.resolve("appmanifest_" + BB2_APP_ID + ".acf").toFile();
+		if (manifest.isFile()) {
+			List<String> tokens = tokenizeVdf(manifest);
+			for (int i = 0; i + 1 < tokens.size(); i++) {
+				if ("installdir".equalsIgnoreCase(tokens.get(i))) {
+					installDir = tokens.get(i + 1);
+					break;
 				}
 			}
 		}
 
-		return Optional.empty();
+		File executable = steamApps.resolve("common").resolve(installDir).resolve(executableFileName).toFile();
+		return isExecutable(executable) ? Optional.of(executable) : Optional.empty();
+	}
+
+	/**
+	 * Reads the library paths from either the current format, with a "path" value per library, or the older one
+	 * where numbered keys map straight to paths
+	 */
+	private List<Path> readLibraryFolders(Path steamDir) throws IOException {
+		List<Path> libraries = new ArrayList<>();
+		for (Path vdfPath : List.of(steamDir.resolve("steamapps").resolve("libraryfolders.vdf"), steamDir.resolve("config").resolve("libraryfolders.vdf"))) {
+			File vdfFile = vdfPath.toFile();
+			if (!vdfFile.isFile()) {
+				continue;
+			}
+
+			int depth = 0;
+			String key = null;
+			for (String token : tokenizeVdf(vdfFile)) {
+				if (token.equals("{")) {
+					depth++;
+					key = null;
+				} else if (token.equals("}")) {
+					depth--;
+					key = null;
+				} else if (key == null) {
+					key = token;
+				} else {
+					if (key.equalsIgnoreCase("path") || (depth == 1 && key.chars().allMatch(Character::isDigit))) {
+						libraries.add(new File(token).toPath());
+					}
+					key = null;
+				}
+			}
+		}
+		return libraries;
+	}
+
+	private static List<String> tokenizeVdf(File vdfFile) throws IOException {
+		List<String> tokens = new ArrayList<>();
+		Matcher matcher = VDF_TOKEN.matcher(new String(Files.readAllBytes(vdfFile.toPath()), StandardCharsets.UTF_8));
+		while (matcher.find()) {
+			if (matcher.group(1) != null) {
+				tokens.add(matcher.group(1).replace("\\\\", "\\").replace("\\\"", "\""));
+			} else {
+				tokens.add(matcher.group(2));
+			}
+		}
+		return tokens;
+	}
+
+	private boolean isExecutable(File executable) {
+		return executable.getName().equals(executableFileName) && executable.exists();
 	}
 }
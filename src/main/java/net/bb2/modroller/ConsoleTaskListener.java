@@ -0,0 +1,100 @@
+package net.bb2.modroller;
+
+import net.bb2.modroller.scenes.TaskListener;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Prints task updates for the headless launcher.
+ *
+ * Log lines go to modroller.log as they do from the UI, and only to the console as well when verbose. Progress is
+ * printed in steps of ten percent, along with the latest status, so package extraction does not flood the console.
+ */
+public class ConsoleTaskListener implements TaskListener {
+
+	private final boolean verbose;
+	private Writer logFileWriter;
+	private String lastStatus;
+	private int lastStep = -1;
+
+	public ConsoleTaskListener(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Mirrors all lines logged from now on to the given file, appending to any existing content
+	 */
+	public synchronized void setLogFile(File logFile) throws IOException {
+		close();
+		logFileWriter = new BufferedWriter(new FileWriter(logFile, true));
+	}
+
+	@Override
+	public synchronized void log(String line) {
+		if (verbose) {
+			System.out.println(line);
+		}
+		if (logFileWriter != null) {
+			try {
+				logFileWriter.write(line);
+				logFileWriter.write(System.lineSeparator());
+			} catch (IOException e) {
+				System.err.println(e);
+				close();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void setStatus(String status) {
+		if (status.isEmpty() || status.equals(lastStatus)) {
+			return;
+		}
+		lastStatus = status;
+		if (lastStep < 0) {
+			System.out.println(status);
+		}
+	}
+
+	@Override
+	public synchronized void setError(String error) {
+		System.err.println("Error: " + error);
+	}
+
+	@Override
+	public synchronized void setProgress(double progress) {
+		int step = (int)(progress * 10);
+		if (step == lastStep) {
+			return;
+		}
+		lastStep = step;
+		if (step == 0) {
+			return;
+		}
+		String status = lastStatus == null ? "" : " " + lastStatus;
+		System.out.println(String.format("[%3d%%]", step * 10) + status);
+	}
+
+	/**
+	 * There is no UI thread to hand over to, so the action runs on the caller's thread
+	 */
+	@Override
+	public void runLater(Runnable action) {
+		action.run();
+	}
+
+	public synchronized void close() {
+		if (logFileWriter != null) {
+			try {
+				logFileWriter.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			logFileWriter = null;
+		}
+	}
+}
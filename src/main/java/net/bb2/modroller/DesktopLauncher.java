@@ -10,6 +10,8 @@ import net.bb2.modroller.scenes.ProcessPackagesScene;
 
 public class DesktopLauncher extends Application {
 
+	private ModManagerScene modManagerScene;
+
 	public static void main(String[] args) {
 	    launch(args);
 	}
@@ -25,20 +27,28 @@ public class DesktopLauncher extends Application {
 
 	    ProcessPackagesScene processPackagesScene = new ProcessPackagesScene();
 	    GitUpdateScene gitUpdateScene = new GitUpdateScene();
-	    ModManagerScene modManagerScene = new ModManagerScene();
+	    modManagerScene = new ModManagerScene();
 
 	    findBaseDirScene.setOnComplete(() -> {
 		    processPackagesScene.show(primaryStage);
 	    });
 	    processPackagesScene.setOnComplete(() -> {
+		    processPackagesScene.close();
 	    	gitUpdateScene.show(primaryStage);
 	    });
 	    gitUpdateScene.setOnComplete(() -> {
+		    gitUpdateScene.close();
 		    modManagerScene.show(primaryStage);
 	    });
+	    gitUpdateScene.setOnModsUpdated(modManagerScene::refresh);
 
 	    findBaseDirScene.show(primaryStage);
 
 	    primaryStage.show();
     }
+
+	@Override
+	public void stop() {
+		modManagerScene.close();
+	}
 }
@@ -0,0 +1,291 @@
+package net.bb2.modroller;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.bb2.modroller.config.DeltaAsset;
+import net.bb2.modroller.config.ModInfo;
+import net.bb2.modroller.config.ModParser;
+import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.scenes.GitUpdateTask;
+import net.bb2.modroller.scenes.InstallPlan;
+import net.bb2.modroller.scenes.ModApplicator;
+import net.bb2.modroller.scenes.PhaseMetrics;
+import net.bb2.modroller.scenes.ProcessPackagesTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Applies a set of mods without the UI, for scripting profile switches and timing installs.
+ *
+ * Runs the same steps as the scenes do in order: finding Blood Bowl 2, extracting packages, updating the mod repo
+ * and then installing exactly the mods asked for in one transaction. Profiles are read from Modroller/profiles.json,
+ * an object of profile name to a list of mod directory names.
+ */
+public class HeadlessLauncher {
+
+	private static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: HeadlessLauncher (--profile <name> | --mods <dir>[,<dir>...] | --verify) [options]",
+			"       HeadlessLauncher --make-delta <original> <modified> <delta>",
+			"  --bb2 <path>     Blood Bowl 2 executable or directory, found through Steam if not given",
+			"  --dry-run        Only print what installing the mods would do to Data",
+			"  --verify         Check the installed mods' files are unchanged, exiting with 3 if not",
+			"  --offline        Use the mod repo as it is, without checking for updates",
+			"  --verbose        Print every log line, not just progress");
+
+	private final ConsoleTaskListener listener;
+
+	private File bb2Path;
+	private String profileName;
+	private List<String> modNames;
+	private boolean dryRun;
+	private boolean verify;
+	private File[] deltaFiles;
+	private boolean offline;
+
+	private HeadlessLauncher(boolean verbose) {
+		this.listener = new ConsoleTaskListener(verbose);
+	}
+
+	public static void main(String[] args) {
+		int exitCode;
+		try {
+			HeadlessLauncher launcher = new HeadlessLauncher(Arrays.asList(args).contains("--verbose"));
+			exitCode = launcher.parseArgs(args) ? launcher.run() : 2;
+		} catch (Exception e) {
+			System.err.println(e);
+			exitCode = 1;
+		}
+		System.exit(exitCode);
+	}
+
+	private boolean parseArgs(String[] args) {
+		for (int cursor = 0; cursor < args.length; cursor++) {
+			String arg = args[cursor];
+			boolean hasValue = cursor + 1 < args.length;
+			if (arg.equals("--bb2") && hasValue) {
+				bb2Path = new File(args[++cursor]);
+			} else if (arg.equals("--profile") && hasValue) {
+				profileName = args[++cursor];
+			} else if (arg.equals("--mods") && hasValue) {
+				modNames = new ArrayList<>();
+				for (String modName : args[++cursor].split(",")) {
+					if (!modName.isBlank()) {
+						modNames.add(modName.trim());
+					}
+				}
+			} else if (arg.equals("--make-delta") && cursor + 3 < args.length) {
+				deltaFiles = new File[] { new File(args[++cursor]), new File(args[++cursor]), new File(args[++cursor]) };
+			} else if (arg.equals("--verify")) {
+				verify = true;
+			} else if (arg.equals("--dry-run")) {
+				dryRun = true;
+			} else if (arg.equals("--offline")) {
+				offline = true;
+			} else if (!arg.equals("--verbose")) {
+				System.err.println("Unknown argument " + arg);
+				System.err.println(USAGE);
+				return false;
+			}
+		}
+
+		int modes = (profileName == null ? 0 : 1) + (modNames == null ? 0 : 1) + (verify ? 1 : 0) + (deltaFiles == null ? 0 : 1);
+		if (modes != 1) {
+			System.err.println(USAGE);
+			return false;
+		}
+		return true;
+	}
+
+	private int run() throws Exception {
+		if (deltaFiles != null) {
+			return makeDelta();
+		}
+
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		try {
+			File bb2Dir = timed("discovery", this::findBb2Dir);
+			if (bb2Dir == null) {
+				listener.setError("Can not find Blood Bowl 2, pass its executable with --bb2");
+				return 1;
+			}
+			config.setBb2Dir(bb2Dir);
+			listener.setLogFile(config.getLogFile());
+			System.out.println("Blood Bowl 2 found at " + bb2Dir.getAbsolutePath());
+
+			if (verify) {
+				return verifyInstalledMods();
+			}
+
+			Set<String> targetModNames = new LinkedHashSet<>(modNames != null ? modNames : readProfile(config));
+
+			if (dryRun) {
+				// Extraction changes Data, so a dry run leaves it for the real run
+				System.out.println("Skipping package extraction for a dry run");
+			} else if (!timed("packages", this::processPackages)) {
+				return 1;
+			}
+
+			if (!timed("modRepo", this::updateModRepo)) {
+				return 1;
+			}
+
+			Map<File, ModInfo> repoMods = timed("catalog", () -> new ModParser().getRepoMods());
+
+			ModApplicator modApplicator = new ModApplicator(listener);
+			if (!dryRun) {
+				modApplicator.recoverInterruptedTransaction();
+			}
+			InstallPlan plan = timed("plan", () -> modApplicator.plan(repoMods, targetModNames));
+			printPlan(plan);
+			if (!dryRun) {
+				timed("apply", () -> {
+					modApplicator.execute(plan);
+					config.flushInstalledMods();
+					return null;
+				});
+			}
+			return 0;
+		} finally {
+			printTimings();
+			listener.close();
+		}
+	}
+
+	/**
+	 * Reads the mod repo as it is, as checking what is installed should not depend on the network
+	 */
+	private int verifyInstalledMods() throws Exception {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		config.setModRepoDir(config.getModRepoCheckoutDir());
+		Map<File, ModInfo> repoMods = timed("catalog", () -> new ModParser().getRepoMods());
+		Map<String, List<String>> problems = timed("verify", () -> new ModApplicator(listener).verify(repoMods));
+
+		int exitCode = 0;
+		for (Map.Entry<String, List<String>> modProblems : problems.entrySet()) {
+			if (modProblems.getValue().isEmpty()) {
+				System.out.println("OK " + modProblems.getKey());
+			} else {
+				exitCode = 3;
+				System.out.println("CHANGED " + modProblems.getKey());
+				for (String problem : modProblems.getValue()) {
+					System.out.println("  " + problem);
+				}
+			}
+		}
+		return exitCode;
+	}
+
+	/**
+	 * Writes a delta for mod authors to ship in place of a large file which changes little of the original
+	 */
+	private int makeDelta() throws IOException {
+		long deltaSize = DeltaAsset.create(deltaFiles[0], deltaFiles[1], deltaFiles[2]);
+		System.out.println("Wrote " + deltaFiles[2].getPath() + ", " + deltaSize + " bytes in place of " + deltaFiles[1].length());
+		if (!deltaFiles[2].getName().endsWith(DeltaAsset.SUFFIX)) {
+			System.out.println("Warning: Deltas should be named after the file they produce followed by " + DeltaAsset.SUFFIX);
+		}
+		return 0;
+	}
+
+	private File findBb2Dir() {
+		if (bb2Path != null) {
+			return bb2Path.isDirectory() ? bb2Path : bb2Path.getParentFile();
+		}
+		Optional<File> bb2Exe = new BBDiscovery().findBB2Exe();
+		return bb2Exe.map(File::getParentFile).orElse(null);
+	}
+
+	private List<String> readProfile(ModrollerConfig config) throws IOException {
+		File profilesFile = config.getProfilesFile();
+		if (!profilesFile.exists()) {
+			throw new IOException("No profiles at " + profilesFile.getAbsolutePath());
+		}
+		Map<String, List<String>> profiles = new ObjectMapper().readValue(profilesFile, new TypeReference<Map<String, List<String>>>() { });
+		List<String> profile = profiles.get(profileName);
+		if (profile == null) {
+			throw new IOException("No profile named " + profileName + " in " + profilesFile.getAbsolutePath());
+		}
+		return profile;
+	}
+
+	/**
+	 * @return Whether every package was extracted or indexed, the task has already printed what went wrong if not
+	 */
+	private boolean processPackages() {
+		boolean[] completed = new boolean[1];
+		ProcessPackagesTask task = new ProcessPackagesTask(ModrollerConfig.getInstance().getBb2Dir(), listener, () -> completed[0] = true);
+		task.run();
+		return completed[0] && task.getFailureCount() == 0;
+	}
+
+	/**
+	 * Runs the update task on this thread, so any update check it makes has finished by the time it returns
+	 */
+	private boolean updateModRepo() throws IOException {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		if (offline) {
+			File modRepoDir = config.getModRepoCheckoutDir();
+			if (modRepoDir.exists()) {
+				config.setModRepoDir(modRepoDir);
+				return true;
+			}
+			System.out.println("No mod repo yet, cloning it anyway");
+		} else {
+			// Always asks the remote, a script wants the current mods rather than those from a few minutes ago
+			config.setUpdateCheckInterval(0);
+		}
+
+		boolean[] completed = new boolean[1];
+		new GitUpdateTask(config, listener, () -> completed[0] = true, () -> System.out.println("Mod repo updated")).run();
+		return completed[0];
+	}
+
+	private void printPlan(InstallPlan plan) {
+		String prefix = dryRun ? "Would " : "Will ";
+		for (File modDir : plan.getUninstalling()) {
+			System.out.println(prefix + "uninstall " + plan.getModName(modDir) + " (" + modDir.getName() + ")");
+		}
+		for (File modDir : plan.getInstalling()) {
+			System.out.println(prefix + "install " + plan.getModName(modDir) + " (" + modDir.getName() + ")");
+		}
+		if (plan.isEmpty()) {
+			System.out.println("Installed mods already match, nothing to do");
+			return;
+		}
+
+		for (InstallPlan.Operation operation : plan.getOperations()) {
+			System.out.println("  " + operation);
+		}
+		System.out.println(plan.getOperations().size() + " operations, " + plan.getKnownBytes() + " bytes");
+	}
+
+	private <T> T timed(String phase, Callable<T> action) throws Exception {
+		return PhaseMetrics.getInstance().time("run." + phase, action::call);
+	}
+
+	/**
+	 * Prints every phase timed during the run, from the launcher's own steps down to single files
+	 */
+	private void printTimings() {
+		PhaseMetrics metrics = PhaseMetrics.getInstance();
+		for (String line : metrics.summarise("")) {
+			System.out.println(line);
+		}
+		if (ModrollerConfig.getInstance().getBb2Dir() != null) {
+			try {
+				metrics.save(ModrollerConfig.getInstance().getMetricsFile());
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package net.bb2.modroller.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Backups of original Data files, stored once per distinct content under their Git blob id.
+ *
+ * Objects live in backup/objects/xx/yyyy... and are hard linked to the original file where the filesystem allows,
+ * so backing up costs a hash rather than a copy. A hard link shares its content with the Data file, and a game update
+ * may well write into that file, so an object is hashed again before use whenever its size or modification time
+ * moved, and dropped if it no longer holds what its id says. backup/index.json maps each path relative to Data onto
+ * its object. Backups made by older versions as plain copies under backup/ are still found.
+ */
+public class BackupStore {
+
+	private final File backupDir;
+	private final File objectsDir;
+	private final File indexFile;
+	private final Map<String, String> index;
+	private final Map<String, String> verifiedObjects = new HashMap<>(); // Object name to the size and time it was hashed at
+
+	private BackupStore(File backupDir, Map<String, String> index) {
+		this.backupDir = backupDir;
+		this.objectsDir = backupDir.toPath().resolve("objects").toFile();
+		this.indexFile = backupDir.toPath().resolve("index.json").toFile();
+		this.index = index;
+	}
+
+	public static BackupStore open(File backupDir) throws IOException {
+		File indexFile = backupDir.toPath().resolve("index.json").toFile();
+		Map<String, String> index = new TreeMap<>();
+		if (indexFile.exists()) {
+			index.putAll(new ObjectMapper().readValue(indexFile, new TypeReference<Map<String, String>>() { }));
+		}
+		return new BackupStore(backupDir, index);
+	}
+
+	/**
+	 * Records the current content of a Data file as its original, unless a backup of that path already exists
+	 *
+	 * @return Whether a new backup was recorded
+	 */
+	public synchronized boolean backup(String dataPath, File originalFile) throws IOException {
+		if (find(dataPath) != null) {
+			return false;
+		}
+
+		ObjectId objectId = preserve(originalFile);
+		index.put(dataPath, objectId.name());
+		saveIndex();
+		return true;
+	}
+
+	/**
+	 * Records the current content of a Data file as its original in place of any earlier backup, as when a game update
+	 * replaced the original
+	 */
+	public synchronized void replace(String dataPath, File originalFile) throws IOException {
+		ObjectId objectId = preserve(originalFile);
+		index.put(dataPath, objectId.name());
+		saveIndex();
+	}
+
+	/**
+	 * @return Paths relative to Data which have a backup recorded in the index
+	 */
+	public synchronized Set<String> getDataPaths() {
+		return new TreeSet<>(index.keySet());
+	}
+
+	/**
+	 * Stores the current content of a file as an object without recording it against any path
+	 *
+	 * @return Id the content can be found under with {@link #findObject}
+	 */
+	public synchronized ObjectId preserve(File file) throws IOException {
+		ObjectId objectId = hash(file);
+		File objectFile = getObjectFile(objectId);
+		if (!objectFile.exists() || !isIntact(objectId, objectFile)) {
+			Files.deleteIfExists(objectFile.toPath());
+			Files.createDirectories(objectFile.getParentFile().toPath());
+			try {
+				Files.createLink(objectFile.toPath(), file.toPath());
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				// Different volume or no hard link support, so fall back to a real copy
+				Path tempFile = objectFile.toPath().resolveSibling(objectFile.getName() + ".tmp");
+				Files.copy(file.toPath(), tempFile, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tempFile, objectFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+		return objectId;
+	}
+
+	/**
+	 * @return The stored content with the given id, or null if it is not in the store
+	 */
+	public synchronized File findObject(ObjectId objectId) throws IOException {
+		File objectFile = getObjectFile(objectId);
+		return objectFile.exists() && isIntact(objectId, objectFile) ? objectFile : null;
+	}
+
+	/**
+	 * @return The backed up original of a path relative to Data, or null if there is none
+	 */
+	public synchronized File find(String dataPath) throws IOException {
+		String objectName = index.get(dataPath);
+		if (objectName != null) {
+			File objectFile = findObject(ObjectId.fromString(objectName));
+			if (objectFile != null) {
+				return objectFile;
+			}
+		}
+
+		File legacyFile = backupDir.toPath().resolve(dataPath).toFile();
+		if (legacyFile.isFile()) {
+			return legacyFile;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Where a backup of the given path would be looked for, for messages when it is missing
+	 */
+	public synchronized File describe(String dataPath) {
+		String objectName = index.get(dataPath);
+		if (objectName != null) {
+			return getObjectFile(ObjectId.fromString(objectName));
+		}
+		return backupDir.toPath().resolve(dataPath).toFile();
+	}
+
+	public static ObjectId hash(File file) throws IOException {
+		try (InputStream input = Files.newInputStream(file.toPath());
+				ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+			return formatter.idFor(Constants.OBJ_BLOB, Files.size(file.toPath()), input);
+		}
+	}
+
+	/**
+	 * Deletes objects no path in the index refers to, such as the journal's copies of files from finished installs.
+	 * Only call while no journal is open.
+	 *
+	 * @return Number of objects deleted
+	 */
+	public synchronized int prune() throws IOException {
+		Set<String> referenced = new HashSet<>(index.values());
+		File[] fanoutDirs = objectsDir.listFiles(File::isDirectory);
+		if (fanoutDirs == null) {
+			return 0;
+		}
+
+		int pruned = 0;
+		for (File fanoutDir : fanoutDirs) {
+			File[] objectFiles = fanoutDir.listFiles();
+			if (objectFiles == null) {
+				continue;
+			}
+			for (File objectFile : objectFiles) {
+				String objectName = fanoutDir.getName() + objectFile.getName();
+				if (!referenced.contains(objectName)) {
+					Files.delete(objectFile.toPath());
+					verifiedObjects.remove(objectName);
+					pruned++;
+				}
+			}
+			String[] remaining = fanoutDir.list();
+			if (remaining != null && remaining.length == 0) {
+				Files.delete(fanoutDir.toPath());
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Hashes the object again if it changed since last checked, as writing into the Data file it is linked to
+	 * changes it too. An object which no longer matches its id is deleted.
+	 */
+	private boolean isIntact(ObjectId objectId, File objectFile) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(objectFile.toPath(), BasicFileAttributes.class);
+		String stamp = attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+		if (stamp.equals(verifiedObjects.get(objectId.name()))) {
+			return true;
+		}
+
+		if (hash(objectFile).equals(objectId)) {
+			verifiedObjects.put(objectId.name(), stamp);
+			return true;
+		}
+		System.err.println("Backup object " + objectId.name() + " was changed through a hard link, deleting it");
+		verifiedObjects.remove(objectId.name());
+		Files.delete(objectFile.toPath());
+		return false;
+	}
+
+	private File getObjectFile(ObjectId objectId) {
+		String name = objectId.name();
+		return objectsDir.toPath().resolve(name.substring(0, 2)).resolve(name.substring(2)).toFile();
+	}
+
+	private void saveIndex() throws IOException {
+		Path tempFile = indexFile.toPath().resolveSibling(indexFile.getName() + ".tmp");
+		new ObjectMapper().writeValue(tempFile.toFile(), index);
+		Files.move(tempFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,127 @@
+package net.bb2.modroller.config;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which mods touch which Data files and XPaths, built once per catalog so conflict checks are only map lookups.
+ *
+ * A mod replacing a whole file conflicts with every other mod replacing or patching that file, while mods patching
+ * the same file only conflict where they patch the same XPath.
+ */
+public class ConflictIndex {
+
+	private final Map<String, Set<String>> replacersByFile = new HashMap<>();
+	private final Map<String, Set<String>> patchersByFile = new HashMap<>();
+	private final Map<String, Set<String>> patchersByXpath = new HashMap<>();
+
+	private final Map<String, Set<String>> replacedFilesByMod = new HashMap<>();
+	private final Map<String, Set<String>> patchedXpathsByMod = new HashMap<>();
+
+	private ConflictIndex() {
+
+	}
+
+	public static ConflictIndex build(Map<File, ModInfo> repoMods) {
+		ConflictIndex index = new ConflictIndex();
+		for (Map.Entry<File, ModInfo> modEntry : repoMods.entrySet()) {
+			String modDirName = modEntry.getKey().getName();
+			ModInfo modInfo = modEntry.getValue();
+
+			if (modInfo.getFiles() != null) {
+				for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
+					String dataPath = normalise(fileEntry.getValue() + "/" + fileEntry.getKey());
+					index.replacersByFile.computeIfAbsent(dataPath, a -> new LinkedHashSet<>()).add(modDirName);
+					index.replacedFilesByMod.computeIfAbsent(modDirName, a -> new LinkedHashSet<>()).add(dataPath);
+				}
+			}
+			if (modInfo.getDeltas() != null) {
+				for (Map.Entry<String, String> deltaEntry : modInfo.getDeltas().entrySet()) {
+					String dataPath = normalise(deltaEntry.getValue() + "/" + DeltaAsset.getTargetName(deltaEntry.getKey()));
+					index.replacersByFile.computeIfAbsent(dataPath, a -> new LinkedHashSet<>()).add(modDirName);
+					index.replacedFilesByMod.computeIfAbsent(modDirName, a -> new LinkedHashSet<>()).add(dataPath);
+				}
+			}
+			if (modInfo.getXml() != null) {
+				for (Map.Entry<String, Map<String, String>> xmlEntry : modInfo.getXml().entrySet()) {
+					String dataPath = normalise(xmlEntry.getKey());
+					index.patchersByFile.computeIfAbsent(dataPath, a -> new LinkedHashSet<>()).add(modDirName);
+					for (String xpath : xmlEntry.getValue().keySet()) {
+						String xpathKey = toXpathKey(dataPath, xpath);
+						index.patchersByXpath.computeIfAbsent(xpathKey, a -> new LinkedHashSet<>()).add(modDirName);
+						index.patchedXpathsByMod.computeIfAbsent(modDirName, a -> new LinkedHashSet<>()).add(xpathKey);
+					}
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return Each of the other mods which touches something the given mod does, mapped to what they share
+	 */
+	public Map<String, List<String>> findConflicts(String modDirName, Collection<String> otherModDirNames) {
+		Set<String> others = otherModDirNames instanceof Set ? (Set<String>) otherModDirNames : new HashSet<>(otherModDirNames);
+		Map<String, List<String>> conflicts = new LinkedHashMap<>();
+
+		for (String dataPath : replacedFilesByMod.getOrDefault(modDirName, Collections.emptySet())) {
+			addConflicts(conflicts, modDirName, others, replacersByFile.get(dataPath), dataPath);
+			addConflicts(conflicts, modDirName, others, patchersByFile.get(dataPath), dataPath);
+		}
+		for (String xpathKey : patchedXpathsByMod.getOrDefault(modDirName, Collections.emptySet())) {
+			String dataPath = xpathKey.substring(0, xpathKey.indexOf('\0'));
+			String description = dataPath + " at " + xpathKey.substring(dataPath.length() + 1);
+			addConflicts(conflicts, modDirName, others, patchersByXpath.get(xpathKey), description);
+			addConflicts(conflicts, modDirName, others, replacersByFile.get(dataPath), description);
+		}
+		return conflicts;
+	}
+
+	/**
+	 * @return Every pair within the given mods which conflicts, keyed by the later mod of each pair
+	 */
+	public Map<String, Map<String, List<String>>> findConflicts(Collection<String> modDirNames) {
+		Map<String, Map<String, List<String>>> conflicts = new LinkedHashMap<>();
+		List<String> earlier = new ArrayList<>();
+		for (String modDirName : modDirNames) {
+			Map<String, List<String>> modConflicts = findConflicts(modDirName, new HashSet<>(earlier));
+			if (!modConflicts.isEmpty()) {
+				conflicts.put(modDirName, modConflicts);
+			}
+			earlier.add(modDirName);
+		}
+		return conflicts;
+	}
+
+	private static void addConflicts(Map<String, List<String>> conflicts, String modDirName, Set<String> others, Set<String> touching, String description) {
+		if (touching == null) {
+			return;
+		}
+		for (String other : touching) {
+			if (!other.equals(modDirName) && others.contains(other)) {
+				List<String> shared = conflicts.computeIfAbsent(other, a -> new ArrayList<>());
+				if (!shared.contains(description)) {
+					shared.add(description);
+				}
+			}
+		}
+	}
+
+	private static String toXpathKey(String dataPath, String xpath) {
+		return dataPath + '\0' + xpath;
+	}
+
+	private static String normalise(String dataPath) {
+		return Paths.get(dataPath.replace('\\', '/')).normalize().toString().replace('\\', '/');
+	}
+}
@@ -0,0 +1,200 @@
+package net.bb2.modroller.config;
+
+import org.eclipse.jgit.internal.storage.pack.DeltaIndex;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Mod files stored as a Git binary delta against the original Data file, for mods which change little of a large file.
+ *
+ * A delta starts with a short magic and the Git blob id of the original it was made from, so it is never applied over
+ * another version of the file which happens to have the same size. The rest is in the format of JGit's pack deltas:
+ * the original's size and the result's size as variable length ints, then instructions which either copy a range of
+ * the original or insert literal bytes. They are made with {@link DeltaIndex}, which needs both files in memory, but
+ * applied as streams, reading only the ranges of the original which are copied, so installing never holds either
+ * file in memory.
+ */
+public class DeltaAsset {
+
+	public static final String SUFFIX = ".delta";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte[] MAGIC = { 'M', 'R', 'D', '1' };
+
+	/**
+	 * @return Name of the file a delta produces, such as pitch.dds for pitch.dds.delta
+	 */
+	public static String getTargetName(String deltaName) {
+		return deltaName.endsWith(SUFFIX) ? deltaName.substring(0, deltaName.length() - SUFFIX.length()) : deltaName;
+	}
+
+	/**
+	 * Writes the delta turning the original into the modified file
+	 *
+	 * @return Size of the delta
+	 */
+	public static long create(File originalFile, File modifiedFile, File deltaFile) throws IOException {
+		byte[] original = Files.readAllBytes(originalFile.toPath());
+		byte[] modified = Files.readAllBytes(modifiedFile.toPath());
+
+		ObjectId originalId;
+		try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+			originalId = formatter.idFor(Constants.OBJ_BLOB, original);
+		}
+
+		Path tempFile = deltaFile.toPath().resolveSibling(deltaFile.getName() + ".tmp");
+		try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+			output.write(MAGIC);
+			originalId.copyRawTo(output);
+			new DeltaIndex(original).encode(output, modified);
+		}
+		Files.move(tempFile, deltaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return deltaFile.length();
+	}
+
+	/**
+	 * @return Size of the file the delta produces, read from its header
+	 */
+	public static long getResultSize(File deltaFile) throws IOException {
+		try (InputStream input = new BufferedInputStream(Files.newInputStream(deltaFile.toPath()))) {
+			readOriginalId(deltaFile, input);
+			readVarint(input);
+			return readVarint(input);
+		}
+	}
+
+	/**
+	 * @return Git blob id of the original the delta was made from
+	 */
+	public static ObjectId getOriginalId(File deltaFile) throws IOException {
+		try (InputStream input = new BufferedInputStream(Files.newInputStream(deltaFile.toPath()))) {
+			return readOriginalId(deltaFile, input);
+		}
+	}
+
+	/**
+	 * Writes the result of applying a delta to the original, failing if the delta was made against another original
+	 *
+	 * @param originalId Git blob id of the original's content, as from {@link BackupStore#hash}
+	 */
+	public static void apply(File originalFile, ObjectId originalId, File deltaFile, Path target) throws IOException {
+		// Checked before the target is created, so a delta for another original leaves nothing behind
+		try (InputStream delta = new BufferedInputStream(Files.newInputStream(deltaFile.toPath()), BUFFER_SIZE);
+				FileChannel original = FileChannel.open(originalFile.toPath(), StandardOpenOption.READ)) {
+			ObjectId expectedId = readOriginalId(deltaFile, delta);
+			if (!expectedId.equals(originalId)) {
+				throw new IOException(deltaFile.getName() + " was made from a different original, expected "
+						+ expectedId.name() + " but it is " + originalId.name());
+			}
+			long baseSize = readVarint(delta);
+			if (baseSize != original.size()) {
+				throw new IOException(deltaFile.getName() + " was made from a different original, expected "
+						+ baseSize + " bytes but it has " + original.size());
+			}
+			try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(target), BUFFER_SIZE)) {
+				long resultSize = readVarint(delta);
+
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				long written = 0;
+				int command;
+				while ((command = delta.read()) >= 0) {
+					if ((command & 0x80) != 0) {
+						long copyOffset = 0;
+						for (int shift = 0; shift < 32; shift += 8) {
+							if ((command & (0x01 << (shift / 8))) != 0) {
+								copyOffset |= (long) readByte(delta) << shift;
+							}
+						}
+						int copySize = 0;
+						for (int shift = 0; shift < 24; shift += 8) {
+							if ((command & (0x10 << (shift / 8))) != 0) {
+								copySize |= readByte(delta) << shift;
+							}
+						}
+						if (copySize == 0) {
+							copySize = 0x10000;
+						}
+						if (copyOffset + copySize > original.size()) {
+							throw new IOException(deltaFile.getName() + " copies past the end of the original");
+						}
+						copy(original, copyOffset, copySize, buffer, output);
+						written += copySize;
+					} else if (command != 0) {
+						byte[] literal = new byte[command];
+						if (delta.readNBytes(literal, 0, command) != command) {
+							throw new EOFException("Unexpected end of " + deltaFile.getName());
+						}
+						output.write(literal);
+						written += command;
+					} else {
+						throw new IOException("Unsupported delta instruction in " + deltaFile.getName());
+					}
+				}
+
+				if (written != resultSize) {
+					throw new IOException("Expected " + resultSize + " bytes from " + deltaFile.getName() + " but it produced " + written);
+				}
+			}
+		}
+	}
+
+	private static void copy(FileChannel original, long offset, int size, ByteBuffer buffer, OutputStream output) throws IOException {
+		long position = offset;
+		long end = offset + size;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = original.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of original while applying delta");
+			}
+			output.write(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+
+	private static ObjectId readOriginalId(File deltaFile, InputStream input) throws IOException {
+		byte[] header = new byte[MAGIC.length + Constants.OBJECT_ID_LENGTH];
+		if (input.readNBytes(header, 0, header.length) != header.length
+				|| !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+			throw new IOException(deltaFile.getName() + " is not a Modroller delta, or was made by an older version");
+		}
+		return ObjectId.fromRaw(header, MAGIC.length);
+	}
+
+	private static long readVarint(InputStream input) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int c;
+		do {
+			c = readByte(input);
+			value |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return value;
+	}
+
+	private static int readByte(InputStream input) throws IOException {
+		int b = input.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of delta");
+		}
+		return b;
+	}
+}
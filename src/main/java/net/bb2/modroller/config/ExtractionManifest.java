@@ -0,0 +1,109 @@
+package net.bb2.modroller.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Record of which packages have been extracted into Data, so that reruns only touch packages which changed
+ */
+public class ExtractionManifest {
+
+	private Map<String, PackageRecord> packages = new TreeMap<>();
+
+	public static ExtractionManifest load(File manifestFile) throws IOException {
+		if (!manifestFile.exists()) {
+			return new ExtractionManifest();
+		}
+		return new ObjectMapper().readValue(manifestFile, ExtractionManifest.class);
+	}
+
+	public synchronized void save(File manifestFile) throws IOException {
+		Path tempFile = manifestFile.toPath().resolveSibling(manifestFile.getName() + ".tmp");
+		new ObjectMapper().writeValue(tempFile.toFile(), this);
+		Files.move(tempFile, manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public synchronized Map<String, PackageRecord> getPackages() {
+		return packages;
+	}
+
+	public synchronized void setPackages(Map<String, PackageRecord> packages) {
+		this.packages = new TreeMap<>(packages);
+	}
+
+	public synchronized PackageRecord getPackage(String packageName) {
+		return packages.get(packageName);
+	}
+
+	public synchronized void putPackage(String packageName, PackageRecord record) {
+		packages.put(packageName, record);
+	}
+
+	/**
+	 * Records a new modification time for a package found unchanged by its content, so it is not hashed again
+	 */
+	public synchronized void updateLastModified(String packageName, long lastModified) {
+		PackageRecord record = packages.get(packageName);
+		if (record != null) {
+			record.setLastModified(lastModified);
+		}
+	}
+
+	public static class PackageRecord {
+
+		private long size;
+		private long lastModified;
+		private String hash;
+		private boolean complete;
+		private List<String> files = new ArrayList<>(); // Paths relative to the BB2 directory
+
+		public long getSize() {
+			return size;
+		}
+
+		public void setSize(long size) {
+			this.size = size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(long lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public void setHash(String hash) {
+			this.hash = hash;
+		}
+
+		public boolean isComplete() {
+			return complete;
+		}
+
+		public void setComplete(boolean complete) {
+			this.complete = complete;
+		}
+
+		public List<String> getFiles() {
+			return files;
+		}
+
+		public void setFiles(List<String> files) {
+			this.files = files;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package net.bb2.modroller.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Puts files into Data by hard link where the source is on the same filesystem, otherwise by a channel to channel copy.
+ *
+ * A linked Data file shares its content with the mod repo or backup file it came from, so it is never written into:
+ * the target is always removed first and the link or copy put in its place, which is also how every other writer
+ * in Modroller replaces files. installed-files.json records the method used for each path relative to Data, which is
+ * only ever reported: verifying looks at the files themselves, as a link may since have been replaced.
+ */
+public class FileInstaller {
+
+	public enum Method {
+		LINK,
+		COPY,
+		DELTA
+	}
+
+	private final File recordFile;
+	private final Map<String, Method> methods;
+	private boolean dirty;
+
+	private FileInstaller(File recordFile, Map<String, Method> methods) {
+		this.recordFile = recordFile;
+		this.methods = methods;
+	}
+
+	public static FileInstaller open(File recordFile) throws IOException {
+		Map<String, Method> methods = new TreeMap<>();
+		if (recordFile.exists()) {
+			methods.putAll(new ObjectMapper().readValue(recordFile, new TypeReference<Map<String, Method>>() { }));
+		}
+		return new FileInstaller(recordFile, methods);
+	}
+
+	/**
+	 * Replaces the target with the content of the source, recording how under the given path
+	 */
+	public synchronized Method install(String dataPath, Path source, Path target) throws IOException {
+		Files.deleteIfExists(target);
+
+		Method method;
+		try {
+			Files.createLink(target, source);
+			method = Method.LINK;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			// Different volume or no hard link support
+			copyFile(source, target);
+			method = Method.COPY;
+		}
+
+		if (methods.put(dataPath, method) != method) {
+			dirty = true;
+		}
+		return method;
+	}
+
+	/**
+	 * Replaces the target with a copy of the source, never a link, for sources such as backups which must not
+	 * change if something later writes into the Data file
+	 */
+	public synchronized void copy(String dataPath, Path source, Path target) throws IOException {
+		copyFile(source, target);
+		if (methods.put(dataPath, Method.COPY) != Method.COPY) {
+			dirty = true;
+		}
+	}
+
+	private static void copyFile(Path source, Path target) throws IOException {
+		Path tempFile = target.resolveSibling(target.getFileName() + ".modroller.tmp");
+		try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = input.size();
+			long position = 0;
+			while (position < size) {
+				long transferred = input.transferTo(position, size - position, output);
+				if (transferred <= 0) {
+					throw new IOException("Unexpected end of " + source + " after " + position + " of " + size + " bytes");
+				}
+				position += transferred;
+			}
+		}
+		Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Replaces the target with the result of applying a delta to the original, recording it under the given path
+	 *
+	 * @param originalId Git blob id of the original's content, which the delta must have been made from
+	 */
+	public synchronized void installDelta(String dataPath, Path original, ObjectId originalId, Path delta, Path target) throws IOException {
+		Path tempFile = target.resolveSibling(target.getFileName() + ".modroller.tmp");
+		try {
+			DeltaAsset.apply(original.toFile(), originalId, delta.toFile(), tempFile);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+		Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		if (methods.put(dataPath, Method.DELTA) != Method.DELTA) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * @return How the file at the given path was last put there, or null if it was not installed by Modroller, for
+	 * logging only as the file may have been replaced since
+	 */
+	public synchronized Method getMethod(String dataPath) {
+		return methods.get(dataPath);
+	}
+
+	/**
+	 * @return Copy of the method recorded for each path, to put back with {@link #setMethods} if an install fails
+	 */
+	public synchronized Map<String, Method> getMethods() {
+		return new TreeMap<>(methods);
+	}
+
+	public synchronized void setMethods(Map<String, Method> methods) {
+		if (!this.methods.equals(methods)) {
+			this.methods.clear();
+			this.methods.putAll(methods);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Writes out the methods recorded since the last save, so a batch of installs writes the record once
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		Path tempFile = recordFile.toPath().resolveSibling(recordFile.getName() + ".tmp");
+		new ObjectMapper().writeValue(tempFile.toFile(), methods);
+		Files.move(tempFile, recordFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		dirty = false;
+	}
+}
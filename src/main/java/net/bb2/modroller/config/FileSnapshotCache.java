@@ -0,0 +1,235 @@
+package net.bb2.modroller.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content hashes of files, reused for as long as a file's size, modification time and identity are unchanged.
+ *
+ * As with JGit's FileSnapshot, a file modified too close to when it was hashed is racily clean: a later write within
+ * the filesystem's timestamp resolution would leave its attributes the same, so such a file is hashed again until
+ * its hash was taken comfortably after its last modification. The resolution is not measured, JGit's worst case
+ * fallback is assumed instead. Also records the content each Data file written by an install is expected to have.
+ */
+public class FileSnapshotCache {
+
+	private static final long RACY_MILLIS = 2000;
+
+	private final File cacheFile;
+	private Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+	private Map<String, String> expectedHashes = new ConcurrentHashMap<>();
+	private volatile boolean dirty;
+
+	private FileSnapshotCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	public static FileSnapshotCache open(File cacheFile) throws IOException {
+		FileSnapshotCache cache = new FileSnapshotCache(cacheFile);
+		if (cacheFile.exists()) {
+			Stored stored = new ObjectMapper().readValue(cacheFile, Stored.class);
+			cache.snapshots.putAll(stored.getSnapshots());
+			cache.expectedHashes.putAll(stored.getExpectedHashes());
+		}
+		return cache;
+	}
+
+	/**
+	 * @return Git blob id of the file's content, or null if there is no such file
+	 */
+	public ObjectId getHash(File file) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		String key = file.getAbsolutePath();
+		Snapshot snapshot = snapshots.get(key);
+		if (snapshot != null && snapshot.matches(attributes) && !snapshot.isRacy()) {
+			return ObjectId.fromString(snapshot.getHash());
+		}
+
+		// Read before hashing, so a write during hashing counts as racy
+		long hashedAt = System.currentTimeMillis();
+		ObjectId hash = BackupStore.hash(file);
+		snapshots.put(key, new Snapshot(attributes, hash.name(), hashedAt));
+		dirty = true;
+		return hash;
+	}
+
+	/**
+	 * @return Whether both paths are the same file, such as a hard link to a mod file, without reading either
+	 */
+	public static boolean isSameFile(File file, File other) throws IOException {
+		// Unlike comparing file keys this also works on Windows, where it compares the volume and NTFS file index
+		return Files.isSameFile(file.toPath(), other.toPath());
+	}
+
+	/**
+	 * @return Hash the given path relative to Data had when last written by an install, or null if not known
+	 */
+	public ObjectId getExpectedHash(String dataPath) {
+		String hash = expectedHashes.get(dataPath);
+		return hash == null ? null : ObjectId.fromString(hash);
+	}
+
+	public void setExpectedHash(String dataPath, ObjectId hash) {
+		expectedHashes.put(dataPath, hash.name());
+		dirty = true;
+	}
+
+	/**
+	 * @return Copy of every expected hash, to put back with {@link #setExpectedHashes} if an install fails
+	 */
+	public Map<String, String> getExpectedHashes() {
+		return new TreeMap<>(expectedHashes);
+	}
+
+	public synchronized void setExpectedHashes(Map<String, String> hashes) {
+		expectedHashes.keySet().retainAll(hashes.keySet());
+		expectedHashes.putAll(hashes);
+		dirty = true;
+	}
+
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		// Cleared before copying, so changes made while writing are saved next time, and set again if writing fails
+		dirty = false;
+		Stored stored = new Stored();
+		stored.setSnapshots(new TreeMap<>(snapshots));
+		stored.setExpectedHashes(new TreeMap<>(expectedHashes));
+
+		Path tempFile = cacheFile.toPath().resolveSibling(cacheFile.getName() + ".tmp");
+		boolean saved = false;
+		try {
+			new ObjectMapper().writeValue(tempFile.toFile(), stored);
+			Files.move(tempFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			saved = true;
+		} finally {
+			if (!saved) {
+				dirty = true;
+			}
+		}
+	}
+
+	public static class Stored {
+
+		private Map<String, Snapshot> snapshots = new TreeMap<>();
+		private Map<String, String> expectedHashes = new TreeMap<>();
+
+		public Map<String, Snapshot> getSnapshots() {
+			return snapshots;
+		}
+
+		public void setSnapshots(Map<String, Snapshot> snapshots) {
+			this.snapshots = snapshots;
+		}
+
+		public Map<String, String> getExpectedHashes() {
+			return expectedHashes;
+		}
+
+		public void setExpectedHashes(Map<String, String> expectedHashes) {
+			this.expectedHashes = expectedHashes;
+		}
+	}
+
+	public static class Snapshot {
+
+		private long size;
+		private long lastModified;
+		private String fileKey;
+		private String hash;
+		private long hashedAt;
+
+		public Snapshot() {
+
+		}
+
+		Snapshot(BasicFileAttributes attributes, String hash, long hashedAt) {
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			this.fileKey = identify(attributes);
+			this.hash = hash;
+			this.hashedAt = hashedAt;
+		}
+
+		boolean matches(BasicFileAttributes attributes) {
+			String currentFileKey = identify(attributes);
+			return size == attributes.size()
+					&& lastModified == attributes.lastModifiedTime().toMillis()
+					&& (fileKey == null ? currentFileKey == null : fileKey.equals(currentFileKey));
+		}
+
+		/**
+		 * Device and inode where the filesystem has them. Java exposes no file key on Windows, nor the NTFS file
+		 * index behind it, so there the creation time stands in, which still tells a file copied or moved over the
+		 * original apart from the original
+		 */
+		private static String identify(BasicFileAttributes attributes) {
+			if (attributes.fileKey() != null) {
+				return attributes.fileKey().toString();
+			}
+			return attributes.creationTime() == null ? null : "created=" + attributes.creationTime().toMillis();
+		}
+
+		boolean isRacy() {
+			return hashedAt - lastModified <= RACY_MILLIS;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public void setSize(long size) {
+			this.size = size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(long lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		public String getFileKey() {
+			return fileKey;
+		}
+
+		public void setFileKey(String fileKey) {
+			this.fileKey = fileKey;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public void setHash(String hash) {
+			this.hash = hash;
+		}
+
+		public long getHashedAt() {
+			return hashedAt;
+		}
+
+		public void setHashedAt(long hashedAt) {
+			this.hashedAt = hashedAt;
+		}
+	}
+}
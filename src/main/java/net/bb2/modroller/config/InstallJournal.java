@@ -0,0 +1,134 @@
+package net.bb2.modroller.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-ahead journal for a batch of mod changes, so a failed or interrupted batch can be rolled back.
+ *
+ * The journal is one JSON object per line. The first line holds the installed mods before the batch started, each
+ * following line the content a Data file had before it was first touched, as an object in the {@link BackupStore},
+ * or no object if the file did not exist. Each line is synced to disk before the file it describes is changed.
+ */
+public class InstallJournal {
+
+	private final File journalFile;
+	private final BackupStore backupStore;
+	private final Path dataDir;
+	private final FileOutputStream output;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final Set<String> recordedPaths = new HashSet<>();
+
+	private InstallJournal(File journalFile, BackupStore backupStore, Path dataDir) throws IOException {
+		this.journalFile = journalFile;
+		this.backupStore = backupStore;
+		this.dataDir = dataDir;
+		this.output = new FileOutputStream(journalFile);
+	}
+
+	public static InstallJournal begin(File journalFile, BackupStore backupStore, Path dataDir, Collection<String> installedMods) throws IOException {
+		if (journalFile.exists()) {
+			throw new IOException("An earlier install was interrupted, restart Modroller to roll it back");
+		}
+		InstallJournal journal = new InstallJournal(journalFile, backupStore, dataDir);
+		Map<String, Object> header = new LinkedHashMap<>();
+		header.put("installedMods", new ArrayList<>(installedMods));
+		journal.writeLine(header);
+		return journal;
+	}
+
+	/**
+	 * Preserves the current content of a Data file, the first time it is recorded in this batch
+	 */
+	public void record(String dataPath) throws IOException {
+		if (!recordedPaths.add(dataPath)) {
+			return;
+		}
+
+		File file = dataDir.resolve(dataPath).toFile();
+		Map<String, Object> entry = new LinkedHashMap<>();
+		entry.put("path", dataPath);
+		entry.put("object", file.exists() ? backupStore.preserve(file).name() : null);
+		writeLine(entry);
+	}
+
+	public void commit() throws IOException {
+		output.close();
+		Files.delete(journalFile.toPath());
+	}
+
+	/**
+	 * Puts every recorded file back as it was
+	 *
+	 * @return The installed mods from before the batch, or null if they were never recorded
+	 */
+	public List<String> rollback() throws IOException {
+		output.close();
+		return recover(journalFile, backupStore, dataDir);
+	}
+
+	/**
+	 * Rolls back whatever a journal left behind by an interrupted batch recorded
+	 *
+	 * @return The installed mods from before the batch, or null if the journal never got as far as recording them
+	 */
+	public static List<String> recover(File journalFile, BackupStore backupStore, Path dataDir) throws IOException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		List<String> installedMods = null;
+		List<Map<String, String>> entries = new ArrayList<>();
+
+		List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+		for (int cursor = 0; cursor < lines.size(); cursor++) {
+			try {
+				if (cursor == 0) {
+					Map<String, List<String>> header = objectMapper.readValue(lines.get(cursor), new TypeReference<Map<String, List<String>>>() { });
+					installedMods = header.get("installedMods");
+				} else {
+					entries.add(objectMapper.readValue(lines.get(cursor), new TypeReference<Map<String, String>>() { }));
+				}
+			} catch (IOException e) {
+				// A torn final line means its file was never touched
+				break;
+			}
+		}
+
+		for (int cursor = entries.size() - 1; cursor >= 0; cursor--) {
+			Path target = dataDir.resolve(entries.get(cursor).get("path"));
+			String objectName = entries.get(cursor).get("object");
+			if (objectName == null) {
+				Files.deleteIfExists(target);
+			} else {
+				File objectFile = backupStore.findObject(ObjectId.fromString(objectName));
+				if (objectFile == null) {
+					throw new IOException("Missing backup object " + objectName + " for " + target);
+				}
+				Files.copy(objectFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		Files.delete(journalFile.toPath());
+		return installedMods;
+	}
+
+	private void writeLine(Map<String, Object> line) throws IOException {
+		output.write((objectMapper.writeValueAsString(line) + "\n").getBytes(StandardCharsets.UTF_8));
+		output.flush();
+		output.getFD().sync();
+	}
+}
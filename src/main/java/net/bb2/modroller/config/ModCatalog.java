@@ -0,0 +1,210 @@
+package net.bb2.modroller.config;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed mod.json of every mod in the repo as of one tree, so an unchanged repo never needs its JSON read again.
+ *
+ * Stored as a small binary file rather than JSON, since avoiding the parse is the whole point. Each mod keeps the
+ * blob id its info was parsed from, so after a pull only mods whose mod.json changed are parsed.
+ */
+public class ModCatalog {
+
+	private static final int MAGIC = 0x4d434154; // "MCAT"
+	private static final int VERSION = 2;
+
+	private final ObjectId treeId;
+	private final Map<String, Entry> entries;
+
+	public ModCatalog(ObjectId treeId, Map<String, Entry> entries) {
+		this.treeId = treeId;
+		this.entries = entries;
+	}
+
+	public ObjectId getTreeId() {
+		return treeId;
+	}
+
+	/**
+	 * @return Mapping of mod directory name to its catalog entry, in tree order
+	 */
+	public Map<String, Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return The catalog stored in the given file, or null if there is none or it was written by another version
+	 */
+	public static ModCatalog load(File catalogFile) throws IOException {
+		if (!catalogFile.exists()) {
+			return null;
+		}
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile.toPath())))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				return null;
+			}
+			ObjectId treeId = readId(input);
+			int count = input.readInt();
+			Map<String, Entry> entries = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				String modDirName = readString(input);
+				ObjectId blobId = readId(input);
+				ModInfo modInfo = input.readBoolean() ? readModInfo(input) : null;
+				entries.put(modDirName, new Entry(blobId, modInfo));
+			}
+			return new ModCatalog(treeId, entries);
+		}
+	}
+
+	public void save(File catalogFile) throws IOException {
+		Path tempFile = catalogFile.toPath().resolveSibling(catalogFile.getName() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			writeId(output, treeId);
+			output.writeInt(entries.size());
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				writeString(output, entry.getKey());
+				writeId(output, entry.getValue().getBlobId());
+				ModInfo modInfo = entry.getValue().getModInfo();
+				output.writeBoolean(modInfo != null);
+				if (modInfo != null) {
+					writeModInfo(output, modInfo);
+				}
+			}
+		}
+		Files.move(tempFile, catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static ModInfo readModInfo(DataInputStream input) throws IOException {
+		ModInfo modInfo = new ModInfo();
+		modInfo.setName(readString(input));
+		modInfo.setCategory(readString(input));
+		modInfo.setDescription(readString(input));
+		modInfo.setPreviewImage(readString(input));
+		modInfo.setFiles(readMap(input));
+		modInfo.setDeltas(readMap(input));
+
+		int xmlCount = input.readInt();
+		if (xmlCount >= 0) {
+			Map<String, Map<String, String>> xml = new LinkedHashMap<>();
+			for (int i = 0; i < xmlCount; i++) {
+				xml.put(readString(input), readMap(input));
+			}
+			modInfo.setXml(xml);
+		} else {
+			modInfo.setXml(null);
+		}
+		return modInfo;
+	}
+
+	private static void writeModInfo(DataOutputStream output, ModInfo modInfo) throws IOException {
+		writeString(output, modInfo.getName());
+		writeString(output, modInfo.getCategory());
+		writeString(output, modInfo.getDescription());
+		writeString(output, modInfo.getPreviewImage());
+		writeMap(output, modInfo.getFiles());
+		writeMap(output, modInfo.getDeltas());
+
+		Map<String, Map<String, String>> xml = modInfo.getXml();
+		if (xml == null) {
+			output.writeInt(-1);
+		} else {
+			output.writeInt(xml.size());
+			for (Map.Entry<String, Map<String, String>> xmlEntry : xml.entrySet()) {
+				writeString(output, xmlEntry.getKey());
+				writeMap(output, xmlEntry.getValue());
+			}
+		}
+	}
+
+	private static Map<String, String> readMap(DataInputStream input) throws IOException {
+		int count = input.readInt();
+		if (count < 0) {
+			return null;
+		}
+		Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			map.put(readString(input), readString(input));
+		}
+		return map;
+	}
+
+	private static void writeMap(DataOutputStream output, Map<String, String> map) throws IOException {
+		if (map == null) {
+			output.writeInt(-1);
+			return;
+		}
+		output.writeInt(map.size());
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			writeString(output, entry.getKey());
+			writeString(output, entry.getValue());
+		}
+	}
+
+	// Length prefixed rather than writeUTF, as XML replacements can run past its 64KB limit
+	private static String readString(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static ObjectId readId(DataInputStream input) throws IOException {
+		byte[] raw = new byte[20];
+		input.readFully(raw);
+		return ObjectId.fromRaw(raw);
+	}
+
+	private static void writeId(DataOutputStream output, ObjectId objectId) throws IOException {
+		byte[] raw = new byte[20];
+		objectId.copyRawTo(raw, 0);
+		output.write(raw);
+	}
+
+	public static class Entry {
+
+		private final ObjectId blobId;
+		private final ModInfo modInfo; // Null if the mod.json lacks a name or description
+
+		public Entry(ObjectId blobId, ModInfo modInfo) {
+			this.blobId = blobId;
+			this.modInfo = modInfo;
+		}
+
+		public ObjectId getBlobId() {
+			return blobId;
+		}
+
+		public ModInfo getModInfo() {
+			return modInfo;
+		}
+	}
+}
@@ -11,6 +11,7 @@ public class ModInfo {
 	private String previewImage;
 
 	private Map<String, String> files = new LinkedHashMap<>(); // Mapping of filename to path within data dir
+	private Map<String, String> deltas = new LinkedHashMap<>(); // Mapping of delta filename to path within data dir
 	private Map<String, Map<String, String>> xml = new LinkedHashMap<>();
 
 	public String getName() {
@@ -45,6 +46,17 @@ public class ModInfo {
 		this.files = files;
 	}
 
+	/**
+	 * @return Files stored as a {@link DeltaAsset} against the original, each producing the file named without .delta
+	 */
+	public Map<String, String> getDeltas() {
+		return deltas;
+	}
+
+	public void setDeltas(Map<String, String> deltas) {
+		this.deltas = deltas;
+	}
+
 	public Map<String, Map<String, String>> getXml() {
 		return xml;
 	}
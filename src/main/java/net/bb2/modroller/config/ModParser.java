@@ -1,6 +1,13 @@
 package net.bb2.modroller.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
 
 import java.io.File;
 import java.io.IOException;
@@ -8,10 +15,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class ModParser {
 
+	private static volatile ModCatalog cachedCatalog;
+
 	private final ObjectMapper objectMapper = new ObjectMapper();
 
 	public ModParser() {
@@ -22,9 +35,143 @@ public class ModParser {
 	 * @return Mapping of mod directory within repo to parsed mod info JSON
 	 */
 	public Map<File, ModInfo> getRepoMods() throws IOException {
+		File modRepoDir = ModrollerConfig.getInstance().getModRepoDir();
+
+		if (!modRepoDir.toPath().resolve(Constants.DOT_GIT).toFile().exists()) {
+			return getWorkingTreeMods(modRepoDir);
+		}
+
+		ModCatalog catalog = getCatalog(modRepoDir);
 		Map<File, ModInfo> results = new LinkedHashMap<>();
+		for (Map.Entry<String, ModCatalog.Entry> entry : catalog.getEntries().entrySet()) {
+			ModInfo modInfo = entry.getValue().getModInfo();
+			File modDir = modRepoDir.toPath().resolve(entry.getKey()).toFile();
+			if (modInfo != null && modDir.isDirectory()) {
+				results.put(modDir, modInfo);
+			}
+		}
+		return results;
+	}
 
-		File modRepoDir = ModrollerConfig.getInstance().getModRepoDir();
+	/**
+	 * Catalog of the mod repo's HEAD tree, reusing the in-memory or stored catalog when the tree is unchanged and
+	 * otherwise parsing only the mod.json blobs which differ from it
+	 */
+	private ModCatalog getCatalog(File modRepoDir) throws IOException {
+		File catalogFile = ModrollerConfig.getInstance().getModCatalogFile();
+
+		try (Repository repository = new FileRepositoryBuilder().setWorkTree(modRepoDir).setMustExist(true).build()) {
+			ObjectId headId = repository.resolve(Constants.HEAD);
+			if (headId == null) {
+				return new ModCatalog(ObjectId.zeroId(), new LinkedHashMap<>());
+			}
+
+			ObjectId treeId;
+			try (RevWalk revWalk = new RevWalk(repository)) {
+				treeId = revWalk.parseCommit(headId).getTree().getId();
+			}
+
+			ModCatalog previous = cachedCatalog;
+			if (previous == null) {
+				try {
+					previous = ModCatalog.load(catalogFile);
+				} catch (IOException e) {
+					// A damaged catalog only costs a full parse
+					System.err.println(e);
+				}
+			}
+			if (previous != null && previous.getTreeId().equals(treeId)) {
+				cachedCatalog = previous;
+				return previous;
+			}
+
+			// Only top level directories hold mods, so their mod.json sits exactly one level down
+			Map<String, ObjectId> blobIds = new LinkedHashMap<>();
+			try (TreeWalk treeWalk = new TreeWalk(repository)) {
+				treeWalk.addTree(treeId);
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(PathSuffixFilter.create("/mod.json"));
+				while (treeWalk.next()) {
+					if (treeWalk.getDepth() == 1 && "mod.json".equals(treeWalk.getNameString())) {
+						String path = treeWalk.getPathString();
+						blobIds.put(path.substring(0, path.indexOf('/')), treeWalk.getObjectId(0));
+					}
+				}
+			}
+
+			Map<String, ModCatalog.Entry> entries = parseChanged(repository, blobIds, previous);
+			ModCatalog catalog = new ModCatalog(treeId, entries);
+			try {
+				catalog.save(catalogFile);
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			cachedCatalog = catalog;
+			return catalog;
+		}
+	}
+
+	private Map<String, ModCatalog.Entry> parseChanged(Repository repository, Map<String, ObjectId> blobIds, ModCatalog previous) throws IOException {
+		Map<String, ModCatalog.Entry> entries = new LinkedHashMap<>();
+		Map<String, Future<ModCatalog.Entry>> parsing = new LinkedHashMap<>();
+
+		ExecutorService executor = null;
+		try {
+			for (Map.Entry<String, ObjectId> blobEntry : blobIds.entrySet()) {
+				String modDirName = blobEntry.getKey();
+				ObjectId blobId = blobEntry.getValue();
+
+				ModCatalog.Entry previousEntry = previous == null ? null : previous.getEntries().get(modDirName);
+				if (previousEntry != null && previousEntry.getBlobId().equals(blobId)) {
+					entries.put(modDirName, previousEntry);
+					continue;
+				}
+
+				if (executor == null) {
+					int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+					executor = Executors.newFixedThreadPool(threads, runnable -> {
+						Thread thread = new Thread(runnable, "mod-parser");
+						thread.setDaemon(true);
+						return thread;
+					});
+				}
+				parsing.put(modDirName, executor.submit(() -> parseBlob(repository, blobId)));
+				entries.put(modDirName, null); // Keeps tree order
+			}
+
+			for (Map.Entry<String, Future<ModCatalog.Entry>> parsingEntry : parsing.entrySet()) {
+				try {
+					entries.put(parsingEntry.getKey(), parsingEntry.getValue().get());
+				} catch (ExecutionException e) {
+					throw new IOException("Could not read mod.json of " + parsingEntry.getKey() + ": " + e.getCause().getMessage(), e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading mods", e);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+		return entries;
+	}
+
+	private ModCatalog.Entry parseBlob(Repository repository, ObjectId blobId) throws IOException {
+		// Repository.open uses its own reader per call, so this is safe across threads
+		byte[] json = repository.open(blobId, Constants.OBJ_BLOB).getCachedBytes();
+		ModInfo modInfo = objectMapper.readValue(json, ModInfo.class);
+		if (modInfo.getName() == null || modInfo.getDescription() == null) {
+			modInfo = null;
+		}
+		return new ModCatalog.Entry(blobId, modInfo);
+	}
+
+	/**
+	 * Fallback for a mod repo which is not a Git checkout
+	 */
+	private Map<File, ModInfo> getWorkingTreeMods(File modRepoDir) throws IOException {
+		Map<File, ModInfo> results = new LinkedHashMap<>();
 
 		for (Path modPath : Files.list(modRepoDir.toPath()).collect(Collectors.toList())) {
 			File modDir = modPath.toFile();
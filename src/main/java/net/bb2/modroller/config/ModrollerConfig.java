@@ -1,37 +1,84 @@
 package net.bb2.modroller.config;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jgit.internal.storage.file.LockFile;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ModrollerConfig {
 
+	private static final long INSTALLED_MODS_SAVE_DELAY_MILLIS = 250;
+
 	private static ModrollerConfig instance = new ModrollerConfig();
 	public static ModrollerConfig getInstance() {
 		return instance;
 	}
 
 	private ModrollerConfig() {
-
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				flushInstalledMods();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}));
 	}
 
 	private File modRepoDir;
 
 	private File bb2Dir;
 
-	private Set<String> installedMods = new LinkedHashSet<>();
+	private final Set<String> installedMods = new LinkedHashSet<>();
+	private boolean installedModsLoaded;
+	private boolean installedModsDirty;
+	private boolean installedModsSaveScheduled;
+	private final ScheduledExecutorService installedModsWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "installed-mods-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private int ioThreadBudget = Integer.getInteger("modroller.ioThreads", 4);
+
+	private boolean streamingXml = !"dom".equals(System.getProperty("modroller.xmlEngine"));
+
+	private boolean partialClone = !"full".equals(System.getProperty("modroller.cloneMode"));
+
+	private boolean pollingWatch = "poll".equals(System.getProperty("modroller.watchMode"));
+
+	private boolean lazyExtraction = "lazy".equals(System.getProperty("modroller.extractMode"));
+
+	private long updateCheckInterval = TimeUnit.MINUTES.toMillis(Long.getLong("modroller.updateCheckMinutes", 10));
+
+	private final Object modRepoLock = new Object();
 
 	public File getBb2Dir() {
 		return bb2Dir;
 	}
 
-	public void setBb2Dir(File bb2Dir) {
+	public synchronized void setBb2Dir(File bb2Dir) {
+		// A change still waiting on the debounce belongs to the old directory, so it is written there now and never
+		// left for the scheduled save to write into the new one
+		if (installedModsDirty) {
+			try {
+				saveInstalledMods();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			installedModsDirty = false;
+		}
 		this.bb2Dir = bb2Dir;
+		installedModsLoaded = false;
 	}
 
 	public File getOrCreateModrollerDir() throws IOException {
@@ -58,6 +105,40 @@ public class ModrollerConfig {
 		return backupDir;
 	}
 
+	public File getLogFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("modroller.log").toFile();
+	}
+
+	public File getExtractionManifestFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("extraction.json").toFile();
+	}
+
+	/**
+	 * @return JSON object of profile name to the mod directory names it installs, for the headless launcher
+	 */
+	public File getProfilesFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("profiles.json").toFile();
+	}
+
+	public File getPackageIndexFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("packages.json").toFile();
+	}
+
+	public File getMetricsFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("metrics.json").toFile();
+	}
+
+	public File getModCatalogFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("catalog.idx").toFile();
+	}
+
+	/**
+	 * @return Where the mod repo is cloned to, which {@link #getModRepoDir} points at once the clone is usable
+	 */
+	public File getModRepoCheckoutDir() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("bb2modrepo").toFile();
+	}
+
 	public void setModRepoDir(File modRepoDir) {
 		this.modRepoDir = modRepoDir;
 	}
@@ -66,38 +147,195 @@ public class ModrollerConfig {
 		return modRepoDir;
 	}
 
-	public Set<String> getInstalledMods() throws IOException {
+	public int getIoThreadBudget() {
+		return ioThreadBudget;
+	}
+
+	public void setIoThreadBudget(int ioThreadBudget) {
+		this.ioThreadBudget = ioThreadBudget;
+	}
+
+	/**
+	 * @return Whether XML patches should be streamed where possible rather than always going through a DOM
+	 */
+	public boolean isStreamingXml() {
+		return streamingXml;
+	}
+
+	public void setStreamingXml(boolean streamingXml) {
+		this.streamingXml = streamingXml;
+	}
+
+	/**
+	 * @return Whether a first clone of the mod repo should leave file content to be fetched as mods need it
+	 */
+	public boolean isPartialClone() {
+		return partialClone;
+	}
+
+	public void setPartialClone(boolean partialClone) {
+		this.partialClone = partialClone;
+	}
+
+	/**
+	 * @return Whether packages are only indexed, with single files extracted as mods need them, rather than unpacked
+	 */
+	public boolean isLazyExtraction() {
+		return lazyExtraction;
+	}
+
+	public void setLazyExtraction(boolean lazyExtraction) {
+		this.lazyExtraction = lazyExtraction;
+	}
+
+	/**
+	 * @return Whether Data should be polled for changes rather than watched, for filesystems whose events are unreliable
+	 */
+	public boolean isPollingWatch() {
+		return pollingWatch;
+	}
+
+	public void setPollingWatch(boolean pollingWatch) {
+		this.pollingWatch = pollingWatch;
+	}
+
+	/**
+	 * @return Milliseconds after a check of the mod repo's remote before it is worth asking again
+	 */
+	public long getUpdateCheckInterval() {
+		return updateCheckInterval;
+	}
+
+	public void setUpdateCheckInterval(long updateCheckInterval) {
+		this.updateCheckInterval = updateCheckInterval;
+	}
+
+	/**
+	 * @return Lock held while the mod repo's working tree is being updated or read from to install mods
+	 */
+	public Object getModRepoLock() {
+		return modRepoLock;
+	}
+
+	/**
+	 * @return Number of package entries to extract at once, bounded by both core count and the I/O budget
+	 */
+	public int getExtractionThreads() {
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), ioThreadBudget));
+	}
+
+	/**
+	 * @return Copy of the installed mod directory names, read from installed.json the first time only
+	 */
+	public synchronized Set<String> getInstalledMods() throws IOException {
+		loadInstalledMods();
+		return new LinkedHashSet<>(installedMods);
+	}
+
+	private File getInstalledModsFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("installed.json").toFile();
+	}
+
+	public synchronized void addInstalledMod(String modDirName) throws IOException {
+		loadInstalledMods();
+		if (installedMods.add(modDirName)) {
+			scheduleInstalledModsSave();
+		}
+	}
+
+	public synchronized void removeInstalledMod(String modDirName) throws IOException {
+		loadInstalledMods();
+		if (installedMods.remove(modDirName)) {
+			scheduleInstalledModsSave();
+		}
+	}
+
+	/**
+	 * Replaces the whole installed set, writing installed.json before returning
+	 */
+	public synchronized void setInstalledMods(Collection<String> modDirNames) throws IOException {
+		installedMods.clear();
+		installedMods.addAll(modDirNames);
+		installedModsLoaded = true;
+
+		saveInstalledMods();
+	}
+
+	/**
+	 * Writes out any change to the installed mods which is still waiting on the debounce delay
+	 */
+	public synchronized void flushInstalledMods() throws IOException {
+		if (installedModsDirty) {
+			saveInstalledMods();
+		}
+	}
+
+	private void loadInstalledMods() throws IOException {
+		if (installedModsLoaded) {
+			return;
+		}
+
 		installedMods.clear();
 		File installedFile = getInstalledModsFile();
 		if (installedFile.exists()) {
-			List<String> fileContents = new ObjectMapper().readValue(installedFile, List.class);
+			List<String> fileContents = new ObjectMapper().readValue(installedFile, new TypeReference<List<String>>() { });
 			installedMods.addAll(fileContents);
 		}
-		return installedMods;
+		installedModsLoaded = true;
 	}
 
-	private File getInstalledModsFile() throws IOException {
-		return getOrCreateModrollerDir().toPath().resolve("installed.json").toFile();
+	// Changes one mod at a time are gathered into a single write shortly after the last of them
+	private void scheduleInstalledModsSave() {
+		installedModsDirty = true;
+		if (installedModsSaveScheduled) {
+			return;
+		}
+
+		installedModsSaveScheduled = true;
+		installedModsWriter.schedule(() -> {
+			synchronized (this) {
+				installedModsSaveScheduled = false;
+				try {
+					flushInstalledMods();
+				} catch (IOException e) {
+					System.err.println(e);
+				}
+			}
+		}, INSTALLED_MODS_SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
 	}
 
-	public void addInstalledMod(String modDirName) throws IOException {
-		installedMods.add(modDirName);
+	private void saveInstalledMods() throws IOException {
+		File installedModsFile = getInstalledModsFile();
+		byte[] content = new ObjectMapper().writeValueAsBytes(installedMods);
 
-		refreshFileContent();
+		// Written beside installed.json and renamed over it, so a crash leaves either the old or the new list
+		LockFile lockFile = new LockFile(installedModsFile);
+		if (!lockFile.lock()) {
+			throw new IOException("Could not lock " + installedModsFile.getAbsolutePath());
+		}
+		try {
+			lockFile.setFSync(true);
+			lockFile.write(content);
+			if (!lockFile.commit()) {
+				throw new IOException("Could not replace " + installedModsFile.getAbsolutePath());
+			}
+		} finally {
+			lockFile.unlock();
+		}
+		installedModsDirty = false;
 	}
 
-	public void removeInstalledMod(String modDirName) throws IOException {
-		installedMods.remove(modDirName);
+	public File getInstalledFilesRecordFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("installed-files.json").toFile();
+	}
 
-		refreshFileContent();
+	public File getFileSnapshotFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("snapshots.json").toFile();
 	}
 
-	private void refreshFileContent() throws IOException {
-		File installedModsFile = getInstalledModsFile();
-		if (installedModsFile.exists()) {
-			installedModsFile.delete();
-		}
-		new ObjectMapper().writeValue(installedModsFile, installedMods);
+	public File getInstallJournalFile() throws IOException {
+		return getOrCreateModrollerDir().toPath().resolve("journal.jsonl").toFile();
 	}
 
+
 }
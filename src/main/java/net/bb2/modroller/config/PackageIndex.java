@@ -0,0 +1,203 @@
+package net.bb2.modroller.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.bb2.modroller.cpk.CpkArchive;
+import net.bb2.modroller.cpk.CpkEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Which package each file of Blood Bowl 2 is packed in, read from the packages' tables of contents only.
+ *
+ * Lets single entries be extracted as mods need them instead of unpacking every package up front. Tables are only
+ * read again for packages whose size or modification time changed since Modroller/packages.json was written. Names
+ * are matched ignoring case, as Windows does, and where several packages hold the same file the most recently
+ * modified package wins, as game updates ship their changes in new packages.
+ */
+public class PackageIndex {
+
+	private Map<String, PackageContents> packages = new TreeMap<>();
+	private final Map<String, Location> locations = new HashMap<>();
+
+	public static PackageIndex load(File indexFile) throws IOException {
+		if (!indexFile.exists()) {
+			return new PackageIndex();
+		}
+		PackageIndex index = new ObjectMapper().readValue(indexFile, PackageIndex.class);
+		index.buildLocations();
+		return index;
+	}
+
+	/**
+	 * Reads the tables of packages which are new or changed and forgets packages which are gone
+	 *
+	 * @return Whether anything changed, so the index is worth saving
+	 */
+	public synchronized boolean refresh(File packagesDir) throws IOException {
+		Map<String, File> packageFiles = new TreeMap<>();
+		File[] files = packagesDir.listFiles();
+		if (files != null) {
+			for (File packageFile : files) {
+				if (packageFile.getName().endsWith(".cpk")) {
+					packageFiles.put(packageFile.getName(), packageFile);
+				}
+			}
+		}
+
+		boolean changed = packages.keySet().retainAll(packageFiles.keySet());
+		for (File packageFile : packageFiles.values()) {
+			PackageContents contents = packages.get(packageFile.getName());
+			if (contents != null && contents.size == packageFile.length() && contents.lastModified == packageFile.lastModified()) {
+				continue;
+			}
+
+			contents = new PackageContents();
+			contents.size = packageFile.length();
+			contents.lastModified = packageFile.lastModified();
+			try (CpkArchive archive = CpkArchive.open(packageFile)) {
+				for (CpkEntry entry : archive.getEntries()) {
+					contents.entries.put(entry.getName(), entry.getStoredSize());
+				}
+			}
+			packages.put(packageFile.getName(), contents);
+			changed = true;
+		}
+
+		if (changed) {
+			buildLocations();
+		}
+		return changed;
+	}
+
+	public synchronized void save(File indexFile) throws IOException {
+		Path tempFile = indexFile.toPath().resolveSibling(indexFile.getName() + ".tmp");
+		new ObjectMapper().writeValue(tempFile.toFile(), this);
+		Files.move(tempFile, indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param name Path relative to the Blood Bowl 2 directory
+	 * @return Name of the package holding the file, or null if no package has it
+	 */
+	public synchronized String findPackage(String name) {
+		Location location = locations.get(toKey(name));
+		return location == null ? null : location.packageName;
+	}
+
+	/**
+	 * @return Packed size of the file, or -1 if no package has it
+	 */
+	public synchronized long getStoredSize(String name) {
+		Location location = locations.get(toKey(name));
+		return location == null ? -1 : location.storedSize;
+	}
+
+	/**
+	 * Extracts a single file from the package holding it, leaving the package as it is
+	 *
+	 * @param name Path relative to the Blood Bowl 2 directory
+	 * @return Where the file was extracted to, or null if no package has it
+	 */
+	public Path extract(File bb2Dir, String name) throws IOException {
+		Location location;
+		synchronized (this) {
+			location = locations.get(toKey(name));
+		}
+		if (location == null) {
+			return null;
+		}
+
+		File packageFile = bb2Dir.toPath().resolve("Data").resolve("Packages").resolve(location.packageName).toFile();
+		try (CpkArchive archive = CpkArchive.open(packageFile)) {
+			for (CpkEntry entry : archive.getEntries()) {
+				if (entry.getName().equals(location.entryName)) {
+					return archive.extract(entry, bb2Dir.toPath());
+				}
+			}
+		}
+		throw new IOException(name + " is no longer in " + location.packageName + ", its packages need indexing again");
+	}
+
+	public synchronized int countEntries() {
+		return locations.size();
+	}
+
+	public synchronized Map<String, PackageContents> getPackages() {
+		return packages;
+	}
+
+	public synchronized void setPackages(Map<String, PackageContents> packages) {
+		this.packages = new TreeMap<>(packages);
+	}
+
+	private void buildLocations() {
+		List<Map.Entry<String, PackageContents>> byAge = new ArrayList<>(packages.entrySet());
+		byAge.sort(Comparator.comparingLong(packageEntry -> packageEntry.getValue().lastModified));
+
+		locations.clear();
+		for (Map.Entry<String, PackageContents> packageEntry : byAge) {
+			for (Map.Entry<String, Long> entry : packageEntry.getValue().entries.entrySet()) {
+				locations.put(toKey(entry.getKey()), new Location(packageEntry.getKey(), entry.getKey(), entry.getValue()));
+			}
+		}
+	}
+
+	private static String toKey(String name) {
+		return name.replace('\\', '/').toLowerCase(Locale.ROOT);
+	}
+
+	public static class PackageContents {
+
+		private long size;
+		private long lastModified;
+		private Map<String, Long> entries = new LinkedHashMap<>(); // Entry name to packed size
+
+		public long getSize() {
+			return size;
+		}
+
+		public void setSize(long size) {
+			this.size = size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(long lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		public Map<String, Long> getEntries() {
+			return entries;
+		}
+
+		public void setEntries(Map<String, Long> entries) {
+			this.entries = entries;
+		}
+	}
+
+	private static class Location {
+		private final String packageName;
+		private final String entryName;
+		private final long storedSize;
+
+		Location(String packageName, String entryName, long storedSize) {
+			this.packageName = packageName;
+			this.entryName = entryName;
+			this.storedSize = storedSize;
+		}
+	}
+}
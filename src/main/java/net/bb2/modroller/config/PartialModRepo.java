@@ -0,0 +1,463 @@
+package net.bb2.modroller.config;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.TransportConfigCallback;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.FilterSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mod repo checkout holding every commit and tree but only the files Modroller has actually needed.
+ *
+ * The clone fetches with a blob:none filter, then fills in the mod.json of every mod so the catalog can be read.
+ * Everything else in a mod directory is only fetched when {@link #materialize} is asked for it, at install or
+ * preview time, and written straight to the working tree. Paths which have been materialized are remembered in the
+ * repo config and refreshed on each update, which stages their new content beside the working tree first so only
+ * moving it into place, and deleting files the new commit no longer has, has to wait for installs. The config also marks the repo as a partial clone the same way Git
+ * does, though there is no index, as nothing but Modroller is expected to use this checkout.
+ */
+public class PartialModRepo {
+
+	public static final String FILTER = "blob:none";
+
+	// Seconds without a response from the server before a fetch gives up
+	private static final int TIMEOUT_SECONDS = 30;
+
+	private static final String REMOTE = Constants.DEFAULT_REMOTE_NAME;
+	private static final String CONFIG_SECTION = "modroller";
+	private static final String CONFIG_MATERIALIZED = "materialized";
+	private static final String TEMP_SUFFIX = ".modroller.tmp";
+	private static final String UPDATE_SUFFIX = ".modroller.update";
+
+	private PartialModRepo() {
+
+	}
+
+	public static boolean isPartial(File modRepoDir) throws IOException {
+		if (!modRepoDir.toPath().resolve(Constants.DOT_GIT).toFile().exists()) {
+			return false;
+		}
+		try (Git git = Git.open(modRepoDir)) {
+			return isPartial(git.getRepository());
+		}
+	}
+
+	private static boolean isPartial(Repository repository) {
+		return REMOTE.equals(repository.getConfig().getString("extensions", null, "partialclone"));
+	}
+
+	/**
+	 * Clones without any file content, leaving HEAD on the remote's default branch and the working tree holding only
+	 * each mod's mod.json
+	 */
+	public static synchronized void cloneRepository(String uri, File modRepoDir) throws Exception {
+		try (Git git = Git.init().setDirectory(modRepoDir).call()) {
+			Repository repository = git.getRepository();
+			StoredConfig config = repository.getConfig();
+			config.setString("remote", REMOTE, "url", uri);
+			config.setString("remote", REMOTE, "fetch", "+refs/heads/*:refs/remotes/" + REMOTE + "/*");
+			config.setBoolean("remote", REMOTE, "promisor", true);
+			config.setString("remote", REMOTE, "partialclonefilter", FILTER);
+			config.setInt("core", null, "repositoryformatversion", 1);
+			config.setString("extensions", null, "partialclone", REMOTE);
+			config.save();
+
+			FetchResult result = fetchHistory(git);
+			String branch = findDefaultBranch(result);
+			if (branch == null) {
+				throw new IOException("Could not find a branch to check out in " + uri);
+			}
+
+			String branchName = Repository.shortenRefName(branch);
+			config.setString("branch", branchName, "remote", REMOTE);
+			config.setString("branch", branchName, "merge", branch);
+			config.save();
+
+			moveBranch(repository, branch, result.getAdvertisedRef(branch).getObjectId());
+			RefUpdate headUpdate = repository.updateRef(Constants.HEAD);
+			headUpdate.disableRefLog();
+			headUpdate.link(branch);
+
+			materializeModInfo(repository);
+		}
+	}
+
+	/**
+	 * Fetches new history, moves HEAD's branch to the remote's and refreshes everything materialized so far
+	 */
+	public static void update(File modRepoDir) throws Exception {
+		fetchUpdate(modRepoDir).apply();
+	}
+
+	/**
+	 * Fetches new history and the new content of everything materialized so far, staging it beside the working tree
+	 * and noting which files were removed upstream, without changing anything the mod repo is used through. Only {@link Update#apply} then changes the checkout, so
+	 * only that needs to exclude installs.
+	 */
+	public static synchronized Update fetchUpdate(File modRepoDir) throws Exception {
+		try (Git git = Git.open(modRepoDir)) {
+			Repository repository = git.getRepository();
+			fetchHistory(git);
+
+			String branch = repository.getFullBranch();
+			Ref remoteBranch = repository.exactRef("refs/remotes/" + REMOTE + "/" + Repository.shortenRefName(branch));
+			ObjectId commitId = remoteBranch != null ? remoteBranch.getObjectId() : repository.resolve(Constants.HEAD);
+			if (commitId == null) {
+				throw new IOException("Mod repo has no HEAD commit");
+			}
+
+			Map<Path, Path> staged = new LinkedHashMap<>();
+			List<Path> removed = new ArrayList<>();
+			try {
+				Map<String, ObjectId> modInfoBlobs = findModInfoBlobs(repository, commitId);
+				staged.putAll(stageFiles(repository, modInfoBlobs, true, UPDATE_SUFFIX));
+				List<String> paths = Arrays.asList(repository.getConfig().getStringList(CONFIG_SECTION, null, CONFIG_MATERIALIZED));
+				Map<String, ObjectId> materializedBlobs = paths.isEmpty() ? Collections.emptyMap() : findBlobs(repository, commitId, paths);
+				staged.putAll(stageFiles(repository, materializedBlobs, false, UPDATE_SUFFIX));
+
+				// The working tree only holds what was written from the old commit, so that is all which can need deleting
+				ObjectId headId = repository.resolve(Constants.HEAD);
+				if (headId != null && !headId.equals(commitId)) {
+					Set<String> previous = new LinkedHashSet<>(findModInfoBlobs(repository, headId).keySet());
+					if (!paths.isEmpty()) {
+						previous.addAll(findBlobs(repository, headId, paths).keySet());
+					}
+					previous.removeAll(modInfoBlobs.keySet());
+					previous.removeAll(materializedBlobs.keySet());
+					for (String path : previous) {
+						removed.add(repository.getWorkTree().toPath().resolve(path));
+					}
+				}
+			} catch (Exception e) {
+				deleteStaged(staged);
+				throw e;
+			}
+			return new Update(modRepoDir, branch, remoteBranch == null ? null : commitId, staged, removed);
+		}
+	}
+
+	/**
+	 * Makes sure the working tree holds the current content of a file or directory of the mod repo, fetching
+	 * whatever is missing. Does nothing for a full clone.
+	 *
+	 * @param path Path within the mod repo, such as a mod directory name
+	 */
+	public static synchronized void materialize(File modRepoDir, String path) throws Exception {
+		if (!isPartial(modRepoDir)) {
+			return;
+		}
+
+		try (Git git = Git.open(modRepoDir)) {
+			Repository repository = git.getRepository();
+			writeFiles(repository, findBlobs(repository, resolveHead(repository), Collections.singletonList(path)), false);
+
+			StoredConfig config = repository.getConfig();
+			Set<String> paths = new LinkedHashSet<>(Arrays.asList(config.getStringList(CONFIG_SECTION, null, CONFIG_MATERIALIZED)));
+			if (paths.add(path)) {
+				config.setStringList(CONFIG_SECTION, null, CONFIG_MATERIALIZED, new ArrayList<>(paths));
+				config.save();
+			}
+		}
+	}
+
+	private static FetchResult fetchHistory(Git git) throws Exception {
+		FilterSpec filterSpec = FilterSpec.fromFilterLine(FILTER);
+		TransportConfigCallback filter = transport -> transport.setFilterSpec(filterSpec);
+		return git.fetch()
+				.setRemote(REMOTE)
+				.setTagOpt(TagOpt.NO_TAGS)
+				.setTransportConfigCallback(filter)
+				.setTimeout(TIMEOUT_SECONDS)
+				.call();
+	}
+
+	private static String findDefaultBranch(FetchResult result) {
+		Ref head = result.getAdvertisedRef(Constants.HEAD);
+		if (head != null && head.isSymbolic()) {
+			return head.getTarget().getName();
+		}
+
+		Ref master = result.getAdvertisedRef(Constants.R_HEADS + Constants.MASTER);
+		if (head == null || (master != null && head.getObjectId().equals(master.getObjectId()))) {
+			return master == null ? null : master.getName();
+		}
+		for (Ref ref : result.getAdvertisedRefs()) {
+			if (ref.getName().startsWith(Constants.R_HEADS) && head.getObjectId().equals(ref.getObjectId())) {
+				return ref.getName();
+			}
+		}
+		return null;
+	}
+
+	private static void moveBranch(Repository repository, String branch, ObjectId commitId) throws IOException {
+		RefUpdate refUpdate = repository.updateRef(branch);
+		refUpdate.setNewObjectId(commitId);
+		refUpdate.setRefLogMessage("modroller: update", false);
+		RefUpdate.Result result = refUpdate.forceUpdate();
+		if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FORCED
+				&& result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NO_CHANGE) {
+			throw new IOException("Could not update " + branch + ": " + result);
+		}
+	}
+
+	/**
+	 * The mod.json of every mod is kept in the object database as well, as the catalog is read from there
+	 */
+	private static void materializeModInfo(Repository repository) throws Exception {
+		writeFiles(repository, findModInfoBlobs(repository, resolveHead(repository)), true);
+	}
+
+	private static Map<String, ObjectId> findModInfoBlobs(Repository repository, ObjectId commitId) throws IOException {
+		Map<String, ObjectId> blobs = new LinkedHashMap<>();
+		try (TreeWalk treeWalk = newWalk(repository, commitId)) {
+			treeWalk.setFilter(PathSuffixFilter.create("/mod.json"));
+			while (treeWalk.next()) {
+				if (treeWalk.getDepth() == 1) {
+					blobs.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+				}
+			}
+		}
+		return blobs;
+	}
+
+	private static Map<String, ObjectId> findBlobs(Repository repository, ObjectId commitId, Collection<String> paths) throws IOException {
+		Map<String, ObjectId> blobs = new LinkedHashMap<>();
+		try (TreeWalk treeWalk = newWalk(repository, commitId)) {
+			treeWalk.setFilter(PathFilterGroup.createFromStrings(paths));
+			while (treeWalk.next()) {
+				blobs.put(treeWalk.getPathString(), treeWalk.getObjectId(0));
+			}
+		}
+		return blobs;
+	}
+
+	private static ObjectId resolveHead(Repository repository) throws IOException {
+		ObjectId headId = repository.resolve(Constants.HEAD);
+		if (headId == null) {
+			throw new IOException("Mod repo has no HEAD commit");
+		}
+		return headId;
+	}
+
+	private static TreeWalk newWalk(Repository repository, ObjectId commitId) throws IOException {
+		TreeWalk treeWalk = new TreeWalk(repository);
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			treeWalk.addTree(revWalk.parseCommit(commitId).getTree());
+		}
+		treeWalk.setRecursive(true);
+		return treeWalk;
+	}
+
+	/**
+	 * Writes the given blobs into the working tree, skipping files which already match and fetching any the object
+	 * database does not have
+	 */
+	private static void writeFiles(Repository repository, Map<String, ObjectId> blobs, boolean keepObjects) throws Exception {
+		Map<Path, Path> staged = stageFiles(repository, blobs, keepObjects, TEMP_SUFFIX);
+		try {
+			moveStaged(staged);
+		} finally {
+			deleteStaged(staged);
+		}
+	}
+
+	/**
+	 * Writes the given blobs which differ from the working tree to files beside their targets, fetching any the object
+	 * database does not have
+	 *
+	 * @return Each target in the working tree mapped to the file holding its new content
+	 */
+	private static Map<Path, Path> stageFiles(Repository repository, Map<String, ObjectId> blobs, boolean keepObjects, String suffix) throws Exception {
+		Path workTree = repository.getWorkTree().toPath();
+
+		Map<String, ObjectId> stale = new LinkedHashMap<>();
+		for (Map.Entry<String, ObjectId> blob : blobs.entrySet()) {
+			File file = workTree.resolve(blob.getKey()).toFile();
+			if (!file.isFile() || !BackupStore.hash(file).equals(blob.getValue())) {
+				stale.put(blob.getKey(), blob.getValue());
+			}
+		}
+		Map<Path, Path> staged = new LinkedHashMap<>();
+		if (stale.isEmpty()) {
+			return staged;
+		}
+
+		Set<ObjectId> missing = new LinkedHashSet<>();
+		for (ObjectId blobId : stale.values()) {
+			if (!repository.getObjectDatabase().has(blobId)) {
+				missing.add(blobId);
+			}
+		}
+
+		// Fetched into a repository with no refs, as any "have" would let the server leave out blobs it can reach
+		try (InMemoryRepository fetched = new InMemoryRepository.Builder()
+						.setRepositoryDescription(new DfsRepositoryDescription("modroller-blobs"))
+						.setFS(repository.getFS())
+						.build();
+				ObjectReader localReader = repository.newObjectReader();
+				ObjectReader fetchedReader = fetched.newObjectReader();
+				ObjectInserter inserter = repository.newObjectInserter()) {
+			if (!missing.isEmpty()) {
+				fetchBlobs(repository, fetched, missing);
+			}
+
+			for (Map.Entry<String, ObjectId> blob : stale.entrySet()) {
+				ObjectId blobId = blob.getValue();
+				boolean isMissing = missing.contains(blobId);
+				ObjectLoader loader = isMissing ? fetchedReader.open(blobId, Constants.OBJ_BLOB) : localReader.open(blobId, Constants.OBJ_BLOB);
+
+				Path target = workTree.resolve(blob.getKey());
+				Files.createDirectories(target.getParent());
+				Path tempFile = target.resolveSibling(target.getFileName() + suffix);
+				staged.put(target, tempFile);
+				try (OutputStream output = Files.newOutputStream(tempFile)) {
+					loader.copyTo(output);
+				}
+
+				if (keepObjects && isMissing) {
+					inserter.insert(Constants.OBJ_BLOB, loader.getCachedBytes());
+				}
+			}
+			inserter.flush();
+		} catch (Exception e) {
+			deleteStaged(staged);
+			throw e;
+		}
+		return staged;
+	}
+
+	private static void moveStaged(Map<Path, Path> staged) throws IOException {
+		for (Map.Entry<Path, Path> stagedEntry : staged.entrySet()) {
+			Files.move(stagedEntry.getValue(), stagedEntry.getKey(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Deletes files from the working tree along with any directories left empty, such as that of a removed mod
+	 */
+	private static void deleteRemoved(Path workTree, List<Path> removed) throws IOException {
+		for (Path file : removed) {
+			Files.deleteIfExists(file);
+			for (Path dir = file.getParent(); dir != null && dir.startsWith(workTree) && !dir.equals(workTree); dir = dir.getParent()) {
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+					if (entries.iterator().hasNext()) {
+						break;
+					}
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				Files.delete(dir);
+			}
+		}
+	}
+
+	private static void deleteStaged(Map<Path, Path> staged) throws IOException {
+		for (Path tempFile : staged.values()) {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private static void fetchBlobs(Repository repository, InMemoryRepository target, Set<ObjectId> blobIds) throws Exception {
+		List<Ref> wants = new ArrayList<>();
+		for (ObjectId blobId : blobIds) {
+			wants.add(new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, blobId.name(), blobId));
+		}
+
+		URIish uri = new URIish(repository.getConfig().getString("remote", REMOTE, "url"));
+		try (Transport transport = Transport.open(target, uri)) {
+			transport.setTimeout(TIMEOUT_SECONDS);
+			try (FetchConnection connection = transport.openFetch()) {
+				connection.fetch(NullProgressMonitor.INSTANCE, wants, Collections.emptySet());
+			}
+		}
+
+		for (ObjectId blobId : blobIds) {
+			if (!target.getObjectDatabase().has(blobId)) {
+				throw new IOException("Mod repo server did not send " + blobId.name());
+			}
+		}
+	}
+
+	/**
+	 * Fetched update of a partial clone, waiting to be swapped into the working tree
+	 */
+	public static class Update {
+
+		private final File modRepoDir;
+		private final String branch;
+		private final ObjectId commitId;
+		private final Map<Path, Path> staged;
+		private final List<Path> removed;
+
+		private Update(File modRepoDir, String branch, ObjectId commitId, Map<Path, Path> staged, List<Path> removed) {
+			this.modRepoDir = modRepoDir;
+			this.branch = branch;
+			this.commitId = commitId;
+			this.staged = staged;
+			this.removed = removed;
+		}
+
+		/**
+		 * Moves HEAD's branch to the fetched commit and the staged files into the working tree, and deletes files the
+		 * commit no longer has, touching only the disk
+		 */
+		public void apply() throws Exception {
+			synchronized (PartialModRepo.class) {
+				try (Git git = Git.open(modRepoDir)) {
+					if (commitId != null) {
+						moveBranch(git.getRepository(), branch, commitId);
+					}
+					moveStaged(staged);
+					deleteRemoved(git.getRepository().getWorkTree().toPath(), removed);
+				} finally {
+					deleteStaged(staged);
+				}
+			}
+		}
+
+		/**
+		 * Throws away the staged files without changing the checkout
+		 */
+		public void discard() throws IOException {
+			deleteStaged(staged);
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package net.bb2.modroller.cpk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for the Cyanide .cpk packages shipped in Data/Packages, following the layout described by
+ * assets/bms/bloodbowl2.bms. All values are little-endian:
+ *
+ * <pre>
+ * int version                    0x1439855 = stored, 0x1439856 = compressed
+ * int fileCount
+ * char[0x200] archiveName
+ * [int compressedTableSize]      compressed archives only
+ * table of fileCount entries, deflated in compressed archives:
+ *     int storedSize
+ *     int offset
+ *     char[0x200] name
+ * </pre>
+ *
+ * In compressed archives each entry's data starts with its extracted size as an int, followed by
+ * storedSize bytes of zlib (or gzip) data.
+ */
+public class CpkArchive implements Closeable {
+
+	public static final int VERSION_STORED = 0x1439855;
+	public static final int VERSION_COMPRESSED = 0x1439856;
+
+	private static final int NAME_LENGTH = 0x200;
+	private static final int ENTRY_LENGTH = 4 + 4 + NAME_LENGTH;
+	private static final int HEADER_LENGTH = 4 + 4 + NAME_LENGTH;
+	private static final int MAX_ENTRIES = 1 << 20;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final FileChannel channel;
+	private final int version;
+	private final String archiveName;
+	private final List<CpkEntry> entries;
+
+	private CpkArchive(File file, FileChannel channel) throws IOException {
+		this.file = file;
+		this.channel = channel;
+
+		ByteBuffer header = read(0, HEADER_LENGTH);
+		version = header.getInt();
+		int fileCount = header.getInt();
+		archiveName = readName(header);
+
+		if (version != VERSION_STORED && version != VERSION_COMPRESSED) {
+			throw new IOException("Unknown package version " + Integer.toHexString(version) + " in " + file.getName());
+		}
+		if (fileCount < 0 || fileCount > MAX_ENTRIES) {
+			throw new IOException("Implausible file count " + fileCount + " in " + file.getName());
+		}
+
+		int tableLength = fileCount * ENTRY_LENGTH;
+		ByteBuffer table;
+		if (version == VERSION_STORED) {
+			table = read(HEADER_LENGTH, tableLength);
+		} else {
+			long compressedTableLength = Integer.toUnsignedLong(read(HEADER_LENGTH, 4).getInt());
+			table = ByteBuffer.allocate(tableLength).order(ByteOrder.LITTLE_ENDIAN);
+			inflate(HEADER_LENGTH + 4, compressedTableLength, new ByteBufferOutputStream(table), tableLength);
+			table.flip();
+		}
+
+		List<CpkEntry> parsedEntries = new ArrayList<>(fileCount);
+		for (int cursor = 0; cursor < fileCount; cursor++) {
+			long storedSize = Integer.toUnsignedLong(table.getInt());
+			long offset = Integer.toUnsignedLong(table.getInt());
+			String name = readName(table).replace('\\', '/');
+
+			long dataLength = version == VERSION_COMPRESSED ? storedSize + 4 : storedSize;
+			if (offset + dataLength > channel.size()) {
+				throw new IOException("Entry " + name + " lies outside of " + file.getName());
+			}
+			parsedEntries.add(new CpkEntry(name, offset, storedSize, version == VERSION_COMPRESSED));
+		}
+		entries = Collections.unmodifiableList(parsedEntries);
+	}
+
+	public static CpkArchive open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new CpkArchive(file, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public String getArchiveName() {
+		return archiveName;
+	}
+
+	public List<CpkEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return Location the entry extracts to, refusing names which would escape the output directory
+	 */
+	public Path resolveTarget(Path outputDir, CpkEntry entry) throws IOException {
+		Path target = outputDir.resolve(entry.getName()).normalize();
+		if (!target.startsWith(outputDir.normalize()) || target.equals(outputDir.normalize())) {
+			throw new IOException("Refusing to extract " + entry.getName() + " outside of " + outputDir);
+		}
+		return target;
+	}
+
+	/**
+	 * Writes a single entry to its location under the output directory. Safe to call from several threads at once.
+	 */
+	public Path extract(CpkEntry entry, Path outputDir) throws IOException {
+		Path target = resolveTarget(outputDir, entry);
+		Files.createDirectories(target.getParent());
+		extractTo(entry, target);
+		return target;
+	}
+
+	public void extractTo(CpkEntry entry, Path target) throws IOException {
+		// Replace rather than overwrite, so that hard links to the previous content are left alone
+		Files.deleteIfExists(target);
+		if (!entry.isCompressed()) {
+			try (FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				long position = 0;
+				while (position < entry.getStoredSize()) {
+					long transferred = channel.transferTo(entry.getOffset() + position, entry.getStoredSize() - position, output);
+					if (transferred <= 0) {
+						throw new IOException("Unexpected end of " + file.getName() + " while reading " + entry.getName());
+					}
+					position += transferred;
+				}
+			}
+		} else {
+			long extractedSize = Integer.toUnsignedLong(read(entry.getOffset(), 4).getInt());
+			try (OutputStream output = Files.newOutputStream(target)) {
+				inflate(entry.getOffset() + 4, entry.getStoredSize(), output, extractedSize);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + file.getName());
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads as much of the range starting at position as fits in the buffer, up to end
+	 *
+	 * @return Position after what was read
+	 */
+	private long fill(ByteBuffer buffer, long position, long end) throws IOException {
+		buffer.clear();
+		buffer.limit((int) Math.min(buffer.capacity(), end - position));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + file.getName());
+			}
+		}
+		buffer.flip();
+		return position + buffer.limit();
+	}
+
+	private static String readName(ByteBuffer buffer) {
+		byte[] nameBytes = new byte[NAME_LENGTH];
+		buffer.get(nameBytes);
+		int length = 0;
+		while (length < nameBytes.length && nameBytes[length] != 0) {
+			length++;
+		}
+		return new String(nameBytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Inflates a range of the package, read in chunks rather than mapped, as Windows keeps mapped files locked until
+	 * the mapping is garbage collected, which stops extracted packages from being deleted
+	 */
+	private void inflate(long position, long length, OutputStream output, long expectedSize) throws IOException {
+		long end = position + length;
+		if (end > channel.size()) {
+			throw new IOException("Unexpected end of " + file.getName());
+		}
+		ByteBuffer input = ByteBuffer.allocate((int) Math.min(length, BUFFER_SIZE));
+		long next = fill(input, position, end);
+
+		// quickbms' gzip comtype accepts both zlib and gzip framing, so do the same
+		boolean nowrap = skipGzipHeader(input);
+		Inflater inflater = new Inflater(nowrap);
+		try {
+			inflater.setInput(input);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long written = 0;
+			while (!inflater.finished()) {
+				if (inflater.needsInput() && next < end) {
+					next = fill(input, next, end);
+					inflater.setInput(input);
+				}
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && ((inflater.needsInput() && next >= end) || inflater.needsDictionary())) {
+					break;
+				}
+				output.write(buffer, 0, inflated);
+				written += inflated;
+			}
+			if (written != expectedSize) {
+				throw new IOException("Expected " + expectedSize + " bytes but inflated " + written + " from " + file.getName());
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed data in " + file.getName() + ": " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static boolean skipGzipHeader(ByteBuffer input) throws IOException {
+		if (input.remaining() < 10 || (input.get(input.position()) & 0xff) != 0x1f || (input.get(input.position() + 1) & 0xff) != 0x8b) {
+			return false;
+		}
+		int flags = input.get(input.position() + 3) & 0xff;
+		int cursor = input.position() + 10;
+		if ((flags & 0x04) != 0 && cursor + 2 <= input.limit()) { // FEXTRA
+			int extraLength = (input.get(cursor) & 0xff) | (input.get(cursor + 1) & 0xff) << 8;
+			cursor += 2 + extraLength;
+		}
+		if ((flags & 0x08) != 0) { // FNAME
+			while (cursor < input.limit() && input.get(cursor++) != 0) { }
+		}
+		if ((flags & 0x10) != 0) { // FCOMMENT
+			while (cursor < input.limit() && input.get(cursor++) != 0) { }
+		}
+		if ((flags & 0x02) != 0) { // FHCRC
+			cursor += 2;
+		}
+		if (cursor > input.limit()) {
+			throw new IOException("Truncated gzip header");
+		}
+		input.position(cursor);
+		return true;
+	}
+
+	private static class ByteBufferOutputStream extends OutputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferOutputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (length > buffer.remaining()) {
+				throw new IOException("Package table is larger than expected");
+			}
+			buffer.put(bytes, offset, length);
+		}
+	}
+}
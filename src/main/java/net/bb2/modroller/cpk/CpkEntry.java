@@ -0,0 +1,40 @@
+package net.bb2.modroller.cpk;
+
+public class CpkEntry {
+
+	private final String name;
+	private final long offset;
+	private final long storedSize;
+	private final boolean compressed;
+
+	CpkEntry(String name, long offset, long storedSize, boolean compressed) {
+		this.name = name;
+		this.offset = offset;
+		this.storedSize = storedSize;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * @return Path of the entry relative to the Blood Bowl 2 directory, always using forward slashes
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getStoredSize() {
+		return storedSize;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
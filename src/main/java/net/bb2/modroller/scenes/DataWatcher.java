@@ -0,0 +1,288 @@
+package net.bb2.modroller.scenes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Notices changes to Data made outside of Modroller, such as Steam updating Blood Bowl 2, and hands them on in batches.
+ *
+ * Changes are gathered until Data has been quiet for a moment, so a package still being downloaded or a whole update
+ * being written arrives as one batch. Where the filesystem can not be watched, such as when a large Data directory
+ * runs out of watches, it is polled instead. Polling only looks at the packages and the files Modroller tracks, as
+ * walking all of Data each time would cost more than it saves.
+ */
+public class DataWatcher implements AutoCloseable {
+
+	private static final long QUIET_MILLIS = 2000;
+	private static final long POLL_MILLIS = 10000;
+
+	public interface Listener {
+
+		/**
+		 * @param dataPaths Changed files, relative to Data
+		 * @param packageNames New or changed packages in Data/Packages
+		 */
+		void onChanges(Set<String> dataPaths, Set<String> packageNames);
+
+		/**
+		 * Called once if Data is polled rather than watched
+		 */
+		default void onPolling() {
+
+		}
+
+	}
+
+	private final Path dataDir;
+	private final Path packagesDir;
+	private final Callable<Collection<String>> trackedPaths;
+	private final Listener listener;
+
+	private volatile WatchService watchService;
+	private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+	private final Map<Path, String> polledState = new HashMap<>();
+
+	private final Set<String> pendingPaths = new LinkedHashSet<>();
+	private final Set<String> pendingPackages = new LinkedHashSet<>();
+	private long lastChangeAt;
+	private volatile boolean closed;
+
+	/**
+	 * @param trackedPaths Files relative to Data which are worth polling, such as those with backups
+	 */
+	public DataWatcher(File bb2Dir, Callable<Collection<String>> trackedPaths, Listener listener) {
+		this.dataDir = bb2Dir.toPath().resolve("Data");
+		this.packagesDir = dataDir.resolve("Packages");
+		this.trackedPaths = trackedPaths;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts watching on a background thread, polling if the filesystem can not be watched or polling is asked for
+	 */
+	public void start(boolean polling) {
+		Thread thread = new Thread(() -> run(polling), "data-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		closeWatchService();
+	}
+
+	private void closeWatchService() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+	}
+
+	/**
+	 * Registers every directory of Data on the watcher's own thread, as walking a large Data directory takes a while
+	 */
+	private void watch() {
+		try {
+			watchService = dataDir.getFileSystem().newWatchService();
+			if (closed) {
+				closeWatchService();
+				return;
+			}
+			registerTree(dataDir);
+		} catch (IOException e) {
+			// Such as running out of inotify watches, which a large Data directory can
+			System.err.println(e);
+			closeWatchService();
+			watchService = null;
+			watchedDirs.clear();
+		}
+	}
+
+	private boolean isPolling() {
+		return watchService == null;
+	}
+
+	private void run(boolean polling) {
+		try {
+			if (!polling) {
+				watch();
+			}
+			if (isPolling()) {
+				listener.onPolling();
+				// The first pass only records what is there, packages already present are extracted on startup
+				poll();
+				pendingPaths.clear();
+				pendingPackages.clear();
+			}
+			while (!closed) {
+				if (isPolling()) {
+					Thread.sleep(POLL_MILLIS);
+					poll();
+				} else {
+					waitForEvents();
+				}
+				dispatchIfQuiet();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		} catch (Exception e) {
+			System.err.println(e);
+		}
+	}
+
+	private void waitForEvents() throws Exception {
+		WatchKey key;
+		if (hasPending()) {
+			key = watchService.poll(Math.max(1, lastChangeAt + QUIET_MILLIS - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} else {
+			key = watchService.take();
+		}
+
+		while (key != null) {
+			Path dir = watchedDirs.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					// Events were lost, so everything tracked is treated as changed
+					addAllTracked();
+					continue;
+				}
+				if (dir == null) {
+					continue;
+				}
+				Path path = dir.resolve((Path) event.context());
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+					registerTree(path);
+					try (Stream<Path> files = Files.walk(path)) {
+						files.filter(Files::isRegularFile).forEach(this::addChange);
+					}
+				} else {
+					addChange(path);
+				}
+			}
+			if (!key.reset()) {
+				watchedDirs.remove(key);
+			}
+			key = watchService.poll();
+		}
+	}
+
+	private void poll() throws Exception {
+		Map<Path, String> currentState = new LinkedHashMap<>();
+		if (Files.isDirectory(packagesDir)) {
+			try (Stream<Path> packages = Files.list(packagesDir)) {
+				packages.filter(this::isPackage).forEach(path -> currentState.put(path, describe(path)));
+			}
+		}
+		for (String dataPath : trackedPaths.call()) {
+			Path path = dataDir.resolve(dataPath);
+			currentState.put(path, describe(path));
+		}
+
+		for (Map.Entry<Path, String> stateEntry : currentState.entrySet()) {
+			String previous = polledState.get(stateEntry.getKey());
+			if (!stateEntry.getValue().equals(previous)) {
+				addChange(stateEntry.getKey());
+			}
+		}
+		polledState.clear();
+		polledState.putAll(currentState);
+	}
+
+	private void addChange(Path path) {
+		if (isPackage(path)) {
+			if (Files.exists(path)) {
+				pendingPackages.add(path.getFileName().toString());
+			}
+		} else if (path.startsWith(dataDir) && !Files.isDirectory(path)) {
+			pendingPaths.add(dataDir.relativize(path).toString().replace('\\', '/'));
+		} else {
+			return;
+		}
+		lastChangeAt = System.currentTimeMillis();
+	}
+
+	private void addAllTracked() throws Exception {
+		for (String dataPath : trackedPaths.call()) {
+			addChange(dataDir.resolve(dataPath));
+		}
+		if (Files.isDirectory(packagesDir)) {
+			try (Stream<Path> packages = Files.list(packagesDir)) {
+				packages.filter(this::isPackage).forEach(this::addChange);
+			}
+		}
+	}
+
+	private void dispatchIfQuiet() {
+		if (!hasPending() || System.currentTimeMillis() - lastChangeAt < QUIET_MILLIS) {
+			return;
+		}
+
+		Set<String> dataPaths = new LinkedHashSet<>(pendingPaths);
+		Set<String> packageNames = new LinkedHashSet<>(pendingPackages);
+		pendingPaths.clear();
+		pendingPackages.clear();
+		try {
+			listener.onChanges(dataPaths, packageNames);
+		} catch (Exception e) {
+			System.err.println(e);
+		}
+	}
+
+	private boolean hasPending() {
+		return !pendingPaths.isEmpty() || !pendingPackages.isEmpty();
+	}
+
+	private void registerTree(Path root) throws IOException {
+		List<Path> dirs = new ArrayList<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+				dirs.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		for (Path dir : dirs) {
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			watchedDirs.put(key, dir);
+		}
+	}
+
+	private boolean isPackage(Path path) {
+		return packagesDir.equals(path.getParent()) && path.getFileName().toString().endsWith(".cpk");
+	}
+
+	private static String describe(Path path) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			return "missing";
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package net.bb2.modroller.scenes;
 
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
@@ -68,7 +69,16 @@ public class FindBaseDirScene extends ModRollerScene {
 
 		this.scene = new Scene(grid, SceneDefaults.WIDTH, SceneDefaults.HEIGHT);
 
-		bbDiscovery.findBB2Exe().ifPresent(this::bbExeChanged);
+		// Searching can touch slow or unreachable drives, so the scene is usable straight away
+		Thread thread = new Thread(() -> {
+			bbDiscovery.findBB2Exe().ifPresent(bb2Exe -> Platform.runLater(() -> {
+				if (bbDirectory == null) {
+					bbExeChanged(bb2Exe);
+				}
+			}));
+		}, "bb2-discovery");
+		thread.setDaemon(true);
+		thread.start();
 	}
 
 	public void initialise(Stage primaryStage) {
@@ -92,6 +102,7 @@ public class FindBaseDirScene extends ModRollerScene {
 		this.bbDirectoryCorrect = isCorrect;
 		if (isCorrect) {
 			ModrollerConfig.getInstance().setBb2Dir(bbDirectory);
+			bbDiscovery.remember(bbDirectory.toPath().resolve(executableName).toFile());
 			validityLabel.setText("BloodBowl2.exe found successfully");
 			validityLabel.setTextFill(Color.web("#339933"));
 			processPackagesButton.setVisible(true);
@@ -0,0 +1,65 @@
+package net.bb2.modroller.scenes;
+
+import javafx.application.Platform;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.paint.Color;
+
+/**
+ * Shows task updates in a scene's controls, any of which may be null if the scene does not have one
+ */
+public class FxTaskListener implements TaskListener {
+
+	private final LogSink logSink;
+	private final Label statusLabel;
+	private final ProgressBar progressBar;
+
+	public FxTaskListener(LogSink logSink, Label statusLabel, ProgressBar progressBar) {
+		this.logSink = logSink;
+		this.statusLabel = statusLabel;
+		this.progressBar = progressBar;
+	}
+
+	@Override
+	public void log(String line) {
+		if (logSink != null) {
+			logSink.log(line);
+		}
+	}
+
+	@Override
+	public void setStatus(String status) {
+		if (statusLabel != null) {
+			runLater(() -> statusLabel.setText(status));
+		}
+	}
+
+	@Override
+	public void setError(String error) {
+		if (statusLabel != null) {
+			runLater(() -> {
+				statusLabel.setText(error);
+				statusLabel.setTextFill(Color.web("#993333"));
+			});
+		}
+	}
+
+	@Override
+	public void setProgress(double progress) {
+		if (progressBar != null) {
+			runLater(() -> progressBar.setProgress(progress));
+		}
+	}
+
+	/**
+	 * Runs straight away on the FX thread, so several updates handed over in one action stay together
+	 */
+	@Override
+	public void runLater(Runnable action) {
+		if (Platform.isFxApplicationThread()) {
+			action.run();
+		} else {
+			Platform.runLater(action);
+		}
+	}
+}
@@ -11,6 +11,7 @@ public class GitUpdateScene extends ModRollerScene {
 
 	private final GridPane grid;
 	private final Label infoLabel;
+	private Callback updatedHandler;
 
 	public GitUpdateScene() {
 
@@ -29,11 +30,22 @@ public class GitUpdateScene extends ModRollerScene {
 		process();
 	}
 
+	/**
+	 * Called when the mod repo is updated in the background after this scene has already completed
+	 */
+	public void setOnModsUpdated(Callback updatedHandler) {
+		this.updatedHandler = updatedHandler;
+	}
+
 	private void process() {
-		GitUpdateTask gitUpdateTask = new GitUpdateTask(ModrollerConfig.getInstance(), infoLabel, () -> {
+		GitUpdateTask gitUpdateTask = new GitUpdateTask(ModrollerConfig.getInstance(), new FxTaskListener(null, infoLabel, null), () -> {
 			if (completionHandler != null) {
 				completionHandler.onAction();
 			}
+		}, () -> {
+			if (updatedHandler != null) {
+				updatedHandler.onAction();
+			}
 		});
 
 		Thread thread = new Thread(gitUpdateTask);
@@ -1,10 +1,14 @@
 package net.bb2.modroller.scenes;
 
-import javafx.application.Platform;
-import javafx.scene.control.Label;
-import javafx.scene.paint.Color;
 import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.config.PartialModRepo;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.util.FileUtils;
 
 import javax.net.ssl.*;
 import java.io.File;
@@ -12,61 +16,189 @@ import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.Map;
 
 
 public class GitUpdateTask implements Runnable {
 
+	private static final String MOD_REPO_URI = "https://github.com/bb2modder/bb2modrepo.git";
+	private static final int UPDATE_CHECK_TIMEOUT_SECONDS = 15;
+	private static final String CONFIG_SECTION = "modroller";
+	private static final String CONFIG_LAST_UPDATE_CHECK = "lastUpdateCheck";
+
 	private final ModrollerConfig config;
-	private final Label infoLabel;
+	private final TaskListener listener;
 	private final Callback callback;
+	private final Callback updatedCallback;
 
-	public GitUpdateTask(ModrollerConfig modrollerConfig, Label infoLabel, Callback callback) {
+	/**
+	 * @param callback Called once there is a mod repo to work with
+	 * @param updatedCallback Called if the mod repo was updated after that, may be null
+	 */
+	public GitUpdateTask(ModrollerConfig modrollerConfig, TaskListener listener, Callback callback, Callback updatedCallback) {
 		this.config = modrollerConfig;
-		this.infoLabel = infoLabel;
+		this.listener = listener;
 		this.callback = callback;
+		this.updatedCallback = updatedCallback;
 	}
 
 
 	@Override
 	public void run() {
 
-		File modrollerDir;
+		File modRepoDir;
 		try {
-			modrollerDir = config.getOrCreateModrollerDir();
+			modRepoDir = config.getModRepoCheckoutDir();
 		} catch (IOException e) {
-			Platform.runLater(() -> {
-				infoLabel.setText("Problem initialising directory: " + e.getMessage());
-				infoLabel.setTextFill(Color.web("#993333"));
-			});
+			listener.setError("Problem initialising directory: " + e.getMessage());
 			return;
 		}
 		try {
 			trustAllCerts();
 
-			File modRepoDir = modrollerDir.toPath().resolve("bb2modrepo").toFile();
 			if (modRepoDir.exists()) {
-				Git.open(modRepoDir)
-						.pull()
-						.call();
-			} else {
-				Git.cloneRepository()
-						.setURI("https://github.com/bb2modder/bb2modrepo.git")
-						.setDirectory(modRepoDir)
-						.call();
-
+				// The existing checkout is good enough to start with, any update is picked up once it lands
+				config.setModRepoDir(modRepoDir);
+				listener.runLater(callback::onAction);
+				updateInBackground(modRepoDir);
+				return;
 			}
+
+			PhaseMetrics.getInstance().time("git.clone", () -> {
+				if (config.isPartialClone()) {
+					try {
+						PartialModRepo.cloneRepository(MOD_REPO_URI, modRepoDir);
+					} catch (Exception e) {
+						// Servers without filter support get a full clone instead
+						System.err.println(e);
+						FileUtils.delete(modRepoDir, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+						cloneFully(modRepoDir);
+					}
+				} else {
+					cloneFully(modRepoDir);
+				}
+			});
+			PhaseMetrics.getInstance().report(listener, "git.");
 			config.setModRepoDir(modRepoDir);
+			XmlPatchCache.getInstance().invalidate();
+			recordUpdateCheck(modRepoDir);
 		} catch (Exception e) {
-			Platform.runLater(() -> {
-				infoLabel.setText("Problem communicating with Git: " + e.getMessage());
-				infoLabel.setTextFill(Color.web("#993333"));
-			});
+			listener.setError("Problem communicating with Git: " + e.getMessage());
 			e.printStackTrace();
 			return;
 		}
 
 
-		Platform.runLater(callback::onAction);
+		listener.runLater(callback::onAction);
+	}
+
+	/**
+	 * Fetches and merges only if the remote branch moved since the last fetch, and skips even asking if that was checked recently
+	 */
+	private void updateInBackground(File modRepoDir) {
+		try {
+			if (!isUpdateCheckDue(modRepoDir)) {
+				return;
+			}
+			PhaseMetrics metrics = PhaseMetrics.getInstance();
+			if (!metrics.time("git.checkRemote", () -> isRemoteChanged(modRepoDir))) {
+				recordUpdateCheck(modRepoDir);
+				metrics.report(listener, "git.");
+				return;
+			}
+
+			// Fetched without the lock, so installs carry on however slow the server is
+			PartialModRepo.Update partialUpdate = metrics.time("git.fetch", () -> {
+				if (PartialModRepo.isPartial(modRepoDir)) {
+					return PartialModRepo.fetchUpdate(modRepoDir);
+				}
+				try (Git git = Git.open(modRepoDir)) {
+					git.fetch()
+							.setTimeout(UPDATE_CHECK_TIMEOUT_SECONDS)
+							.call();
+				}
+				return null;
+			});
+
+			// Only swapping the new files into the working tree has to wait for installs
+			synchronized (config.getModRepoLock()) {
+				metrics.time("git.update", () -> {
+					if (partialUpdate != null) {
+						partialUpdate.apply();
+					} else {
+						mergeTrackingBranch(modRepoDir);
+					}
+				});
+				XmlPatchCache.getInstance().invalidate();
+			}
+			recordUpdateCheck(modRepoDir);
+			metrics.report(listener, "git.");
+
+			if (updatedCallback != null) {
+				listener.runLater(updatedCallback::onAction);
+			}
+		} catch (Exception e) {
+			// Offline or the server is unreachable, so carry on with the mods already checked out
+			System.err.println(e);
+		}
+	}
+
+	private boolean isRemoteChanged(File modRepoDir) throws Exception {
+		try (Git git = Git.open(modRepoDir)) {
+			Repository repository = git.getRepository();
+			String branch = repository.getFullBranch();
+			if (branch == null || !branch.startsWith(Constants.R_HEADS)) {
+				return true;
+			}
+
+			Map<String, Ref> remoteRefs = git.lsRemote()
+					.setHeads(true)
+					.setTimeout(UPDATE_CHECK_TIMEOUT_SECONDS)
+					.callAsMap();
+			Ref remoteBranch = remoteRefs.get(branch);
+			Ref trackingBranch = repository.exactRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + Repository.shortenRefName(branch));
+			ObjectId headId = repository.resolve(Constants.HEAD);
+			if (remoteBranch == null || trackingBranch == null || headId == null) {
+				return true;
+			}
+			// A pull which fetched but never merged also leaves HEAD behind the tracking branch
+			return !remoteBranch.getObjectId().equals(trackingBranch.getObjectId()) || !headId.equals(trackingBranch.getObjectId());
+		}
+	}
+
+	private void mergeTrackingBranch(File modRepoDir) throws Exception {
+		try (Git git = Git.open(modRepoDir)) {
+			Repository repository = git.getRepository();
+			Ref trackingBranch = repository.exactRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + Repository.shortenRefName(repository.getFullBranch()));
+			if (trackingBranch != null) {
+				git.merge()
+						.include(trackingBranch)
+						.call();
+			}
+		}
+	}
+
+	private boolean isUpdateCheckDue(File modRepoDir) throws IOException {
+		try (Git git = Git.open(modRepoDir)) {
+			long lastCheck = git.getRepository().getConfig().getLong(CONFIG_SECTION, null, CONFIG_LAST_UPDATE_CHECK, 0);
+			return System.currentTimeMillis() - lastCheck >= config.getUpdateCheckInterval();
+		}
+	}
+
+	private void recordUpdateCheck(File modRepoDir) throws IOException {
+		try (Git git = Git.open(modRepoDir)) {
+			StoredConfig repoConfig = git.getRepository().getConfig();
+			repoConfig.setLong(CONFIG_SECTION, null, CONFIG_LAST_UPDATE_CHECK, System.currentTimeMillis());
+			repoConfig.save();
+		}
+	}
+
+	private void cloneFully(File modRepoDir) throws Exception {
+		Git.cloneRepository()
+				.setURI(MOD_REPO_URI)
+				.setDirectory(modRepoDir)
+				.call()
+				.close();
 	}
 
 	private void trustAllCerts() throws NoSuchAlgorithmException, KeyManagementException {
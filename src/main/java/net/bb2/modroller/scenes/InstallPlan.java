@@ -0,0 +1,180 @@
+package net.bb2.modroller.scenes;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything a change of installed mods will do to Data, worked out before any of it is done.
+ *
+ * Made by {@link ModApplicator#plan} and carried out by {@link ModApplicator#execute}, so a plan shown to the user
+ * is exactly what runs. Each Data file appears once with its final source: a file restored for one mod and then
+ * replaced by another is only copied, and of several patches to the same XPath of a file only the last is kept.
+ */
+public class InstallPlan {
+
+	public enum Action {
+		EXTRACT,
+		BACKUP,
+		RESTORE,
+		COPY,
+		APPLY_DELTA,
+		REWRITE_XML,
+		RESTORE_XPATH,
+		REPLACE_XPATH
+	}
+
+	public static class Operation {
+		private final Action action;
+		private final String dataPath;
+		private final String xpath;
+		private final String source;
+		private final long bytes;
+
+		Operation(Action action, String dataPath, String xpath, String source, long bytes) {
+			this.action = action;
+			this.dataPath = dataPath;
+			this.xpath = xpath;
+			this.source = source;
+			this.bytes = bytes;
+		}
+
+		public Action getAction() {
+			return action;
+		}
+
+		/**
+		 * @return Path of the file within Data
+		 */
+		public String getDataPath() {
+			return dataPath;
+		}
+
+		/**
+		 * @return XPath within the file, for operations on part of an XML file only
+		 */
+		public String getXpath() {
+			return xpath;
+		}
+
+		/**
+		 * @return What the content comes from, such as a mod file or a backup, or null for XML rewrites
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * @return Bytes read or written, or -1 if not known yet, as for files a partial clone has not fetched
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder description = new StringBuilder(action.name()).append(' ').append(dataPath);
+			if (xpath != null) {
+				description.append(" at ").append(xpath);
+			}
+			if (source != null) {
+				description.append(" from ").append(source);
+			}
+			return description.append(" (").append(bytes < 0 ? "unknown size" : bytes + " bytes").append(')').toString();
+		}
+	}
+
+	final Path dataDir;
+	final Set<String> installedModNames;
+	final List<File> uninstalling = new ArrayList<>();
+	final List<File> keeping = new ArrayList<>();
+	final List<File> installing = new ArrayList<>();
+	final Map<File, String> modNames = new LinkedHashMap<>();
+
+	final Set<String> fileRestores = new LinkedHashSet<>();
+	final Map<String, Path> fileCopies = new LinkedHashMap<>();
+	final Map<String, Path> fileDeltas = new LinkedHashMap<>();
+	final Map<String, Set<String>> xmlRemovals = new LinkedHashMap<>();
+	final Map<String, List<ModXmlApplicator.XmlPatch>> xmlPatches = new LinkedHashMap<>();
+	final List<Operation> operations = new ArrayList<>();
+
+	InstallPlan(Path dataDir, Set<String> installedModNames) {
+		this.dataDir = dataDir;
+		this.installedModNames = installedModNames;
+	}
+
+	/**
+	 * Makes a mod file the final source of a Data path, in place of any earlier copy or delta
+	 */
+	void putCopy(String dataPath, Path source) {
+		fileDeltas.remove(dataPath);
+		fileCopies.remove(dataPath);
+		fileCopies.put(dataPath, source);
+	}
+
+	/**
+	 * Makes a delta against the original the final source of a Data path, in place of any earlier copy or delta
+	 */
+	void putDelta(String dataPath, Path delta) {
+		fileCopies.remove(dataPath);
+		fileDeltas.remove(dataPath);
+		fileDeltas.put(dataPath, delta);
+	}
+
+	/**
+	 * @return Whether the installed mods already match and nothing would be done
+	 */
+	public boolean isEmpty() {
+		return uninstalling.isEmpty() && installing.isEmpty();
+	}
+
+	public List<File> getUninstalling() {
+		return Collections.unmodifiableList(uninstalling);
+	}
+
+	public List<File> getInstalling() {
+		return Collections.unmodifiableList(installing);
+	}
+
+	/**
+	 * @return Directory names of the mods installed once the plan has run, in the order they are applied
+	 */
+	public List<String> getFinalModNames() {
+		List<String> finalModNames = new ArrayList<>();
+		for (File modDir : keeping) {
+			finalModNames.add(modDir.getName());
+		}
+		for (File modDir : installing) {
+			finalModNames.add(modDir.getName());
+		}
+		return finalModNames;
+	}
+
+	public String getModName(File modDir) {
+		return modNames.get(modDir);
+	}
+
+	/**
+	 * @return Operations in the order they are carried out
+	 */
+	public List<Operation> getOperations() {
+		return Collections.unmodifiableList(operations);
+	}
+
+	/**
+	 * @return Bytes of every operation whose size is known
+	 */
+	public long getKnownBytes() {
+		long total = 0;
+		for (Operation operation : operations) {
+			total += Math.max(0, operation.getBytes());
+		}
+		return total;
+	}
+}
@@ -0,0 +1,7 @@
+package net.bb2.modroller.scenes;
+
+public interface Log {
+
+	void log(String line);
+
+}
@@ -0,0 +1,209 @@
+package net.bb2.modroller.scenes;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.control.TextArea;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects log lines from any thread and appends them to a TextArea in batches, at most once per frame.
+ *
+ * Lines are passed through a bounded multi-producer ring buffer, so logging never takes a lock and never queues
+ * a runnable per line. Only the newest lines are kept in the TextArea, optionally mirroring everything to a file,
+ * which is written on a thread of its own so the FX thread never waits on the disk.
+ */
+public class LogSink implements Log {
+
+	private static final int CAPACITY = 1 << 13;
+	private static final int DEFAULT_MAX_LINES = 2000;
+
+	private final TextArea textArea;
+	private final int maxLines;
+
+	// Each slot's sequence says whose turn it is: seq == position means free for that producer,
+	// seq == position + 1 means filled and waiting for the consumer
+	private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(CAPACITY);
+	private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+	private final AtomicLong tail = new AtomicLong();
+	private long head; // Only touched by the FX thread
+
+	private final Deque<Integer> retainedLineLengths = new ArrayDeque<>();
+	private final ExecutorService logFileExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "log-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Writer logFileWriter; // Only touched by the log-writer thread
+	private boolean mirroring; // Only touched by the FX thread
+	private volatile boolean closed;
+
+	private final AnimationTimer flushTimer = new AnimationTimer() {
+		@Override
+		public void handle(long now) {
+			flush();
+		}
+	};
+
+	public LogSink(TextArea textArea) {
+		this(textArea, DEFAULT_MAX_LINES);
+	}
+
+	public LogSink(TextArea textArea, int maxLines) {
+		this.textArea = textArea;
+		this.maxLines = maxLines;
+		for (int cursor = 0; cursor < CAPACITY; cursor++) {
+			sequences.set(cursor, cursor);
+		}
+
+		if (Platform.isFxApplicationThread()) {
+			flushTimer.start();
+		} else {
+			Platform.runLater(() -> {
+				if (!closed) {
+					flushTimer.start();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a line for display, blocking briefly only if the UI has fallen a whole buffer behind. Lines logged once
+	 * the sink is closed are dropped.
+	 */
+	@Override
+	public void log(String line) {
+		if (closed) {
+			return;
+		}
+		long position = tail.getAndIncrement();
+		int index = (int)(position & (CAPACITY - 1));
+		while (sequences.get(index) != position) {
+			if (closed) {
+				// Nothing drains the buffer any more, so the line is dropped like any other logged after closing
+				return;
+			}
+			if (Platform.isFxApplicationThread()) {
+				flush();
+			} else {
+				Thread.yield();
+			}
+		}
+		slots.set(index, line);
+		sequences.set(index, position + 1);
+	}
+
+	/**
+	 * Mirrors all lines logged from now on to the given file, appending to any existing content
+	 */
+	public void setLogFile(File logFile) throws IOException {
+		Writer writer = new BufferedWriter(new FileWriter(logFile, true));
+		Platform.runLater(() -> {
+			if (closed) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					System.err.println(e);
+				}
+				return;
+			}
+			mirroring = true;
+			logFileExecutor.execute(() -> {
+				closeLogFile();
+				logFileWriter = writer;
+			});
+		});
+	}
+
+	/**
+	 * Stops updating the TextArea and closes the log file once the lines already logged are written. Call on the FX
+	 * thread when the scene showing the log is left.
+	 */
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		flushTimer.stop();
+		flush();
+		logFileExecutor.execute(this::closeLogFile);
+		logFileExecutor.shutdown();
+	}
+
+	private void writeLogFile(List<String> lines) {
+		if (logFileWriter == null) {
+			return;
+		}
+		try {
+			for (String line : lines) {
+				logFileWriter.write(line);
+				logFileWriter.write(System.lineSeparator());
+			}
+			logFileWriter.flush();
+		} catch (IOException e) {
+			System.err.println(e);
+			closeLogFile();
+		}
+	}
+
+	private void closeLogFile() {
+		if (logFileWriter != null) {
+			try {
+				logFileWriter.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			logFileWriter = null;
+		}
+	}
+
+	private void flush() {
+		List<String> lines = new ArrayList<>();
+		while (true) {
+			int index = (int)(head & (CAPACITY - 1));
+			if (sequences.get(index) != head + 1) {
+				break;
+			}
+			lines.add(slots.get(index));
+			slots.set(index, null);
+			sequences.set(index, head + CAPACITY);
+			head++;
+		}
+		if (lines.isEmpty()) {
+			return;
+		}
+
+		if (mirroring) {
+			logFileExecutor.execute(() -> writeLogFile(lines));
+		}
+
+		// Lines which would be trimmed straight away are never handed to the TextArea
+		StringBuilder batch = new StringBuilder();
+		for (String line : lines.subList(Math.max(0, lines.size() - maxLines), lines.size())) {
+			batch.append(line).append('\n');
+			retainedLineLengths.addLast(line.length() + 1);
+		}
+
+		int trimLength = 0;
+		while (retainedLineLengths.size() > maxLines) {
+			trimLength += retainedLineLengths.removeFirst();
+		}
+		if (trimLength > 0) {
+			textArea.deleteText(0, Math.min(trimLength, textArea.getLength()));
+		}
+		textArea.appendText(batch.toString());
+	}
+}
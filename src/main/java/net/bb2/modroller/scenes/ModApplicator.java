@@ -1,125 +1,834 @@
 package net.bb2.modroller.scenes;
 
-import javafx.scene.control.TextArea;
+import net.bb2.modroller.config.BackupStore;
+import net.bb2.modroller.config.ConflictIndex;
+import net.bb2.modroller.config.DeltaAsset;
+import net.bb2.modroller.config.FileInstaller;
+import net.bb2.modroller.config.FileSnapshotCache;
+import net.bb2.modroller.config.InstallJournal;
 import net.bb2.modroller.config.ModInfo;
 import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.config.PackageIndex;
+import net.bb2.modroller.config.PartialModRepo;
+import org.eclipse.jgit.lib.ObjectId;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ModApplicator {
-	private final TextArea textArea;
+	private final Log logSink;
 	private final ModXmlApplicator modXmlApplicator = new ModXmlApplicator();
+	private BackupStore backupStore;
+	private FileInstaller fileInstaller;
+	private volatile ConflictIndex conflictIndex;
+	private FileSnapshotCache snapshotCache;
+	private PackageIndex packageIndex;
 
-	public ModApplicator(TextArea textArea) {
-		this.textArea = textArea;
+	public ModApplicator(Log logSink) {
+		this.logSink = logSink;
 	}
 
-	public void install(File modDir, ModInfo modInfo) throws Exception {
-		textArea.appendText("Installing " + modInfo.getName() + "\n");
-		File bb2Dir = ModrollerConfig.getInstance().getBb2Dir();
-		Path dataDir = bb2Dir.toPath().resolve("Data");
-		File backupDir = ModrollerConfig.getInstance().getOrCreateBackupDir();
+	/**
+	 * Moves from the currently installed mods to exactly the target set in one journaled pass.
+	 *
+	 * Each Data file is written at most once: a file replaced by both a removed and a remaining mod is copied from
+	 * the remaining mod rather than restored first, and each XML file is rolled back and patched in one go. If
+	 * anything fails every touched file is put back and installed.json is left alone, otherwise it is written once.
+	 *
+	 * @param repoMods Every mod available, as returned by {@link net.bb2.modroller.config.ModParser#getRepoMods()}
+	 * @param targetModNames Directory names of the mods which should be installed afterwards
+	 */
+	public void applyTransaction(Map<File, ModInfo> repoMods, Set<String> targetModNames) throws Exception {
+		execute(plan(repoMods, targetModNames));
+	}
 
-		if (modInfo.getFiles() != null) {
-			for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
-				String filename = fileEntry.getKey();
-				String replacementPath = fileEntry.getValue();
+	/**
+	 * Works out what installing exactly the given mods would do to Data, without changing anything
+	 *
+	 * @param repoMods Every mod available, as returned by {@link net.bb2.modroller.config.ModParser#getRepoMods()}
+	 * @param targetModNames Directory names of the mods which should be installed afterwards
+	 */
+	public InstallPlan plan(Map<File, ModInfo> repoMods, Set<String> targetModNames) throws IOException {
+		return PhaseMetrics.getInstance().time("install.plan", () -> buildPlan(repoMods, targetModNames));
+	}
 
-				File targetFile = dataDir.resolve(replacementPath).resolve(filename).toFile();
-				if (targetFile.exists()) {
-					backup(targetFile, backupDir, filename, replacementPath);
-				} else {
-					textArea.appendText("No existing file at " + targetFile + " to back up\n");
-				}
+	private InstallPlan buildPlan(Map<File, ModInfo> repoMods, Set<String> targetModNames) throws IOException {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		Path dataDir = config.getBb2Dir().toPath().resolve("Data");
+		BackupStore backupStore = getBackupStore();
 
-				Path sourceFile = modDir.toPath().resolve(filename);
+		Map<String, File> modDirsByName = new LinkedHashMap<>();
+		for (File modDir : repoMods.keySet()) {
+			modDirsByName.put(modDir.getName(), modDir);
+		}
+		for (String targetModName : targetModNames) {
+			if (!modDirsByName.containsKey(targetModName)) {
+				throw new IOException("Unknown mod " + targetModName);
+			}
+		}
 
-				textArea.appendText("Copying " + filename + " to " + targetFile.getAbsolutePath() + "\n");
-				Files.copy(sourceFile, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		InstallPlan plan = new InstallPlan(dataDir, config.getInstalledMods());
+		for (String installedModName : plan.installedModNames) {
+			File modDir = modDirsByName.get(installedModName);
+			if (modDir == null) {
+				logSink.log("Warning: Installed mod " + installedModName + " is no longer available, forgetting it");
+			} else if (targetModNames.contains(installedModName)) {
+				plan.keeping.add(modDir);
+			} else {
+				plan.uninstalling.add(modDir);
+			}
+		}
+		for (String targetModName : targetModNames) {
+			if (!plan.installedModNames.contains(targetModName)) {
+				plan.installing.add(modDirsByName.get(targetModName));
+			}
+		}
+		for (File modDir : repoMods.keySet()) {
+			plan.modNames.put(modDir, repoMods.get(modDir).getName());
+		}
+
+		if (conflictIndex != null) {
+			List<String> applied = new ArrayList<>();
+			for (File modDir : plan.keeping) {
+				applied.add(modDir.getName());
+			}
+			for (File modDir : plan.installing) {
+				warnConflicts(repoMods, modDir, applied);
+				applied.add(modDir.getName());
+			}
+		}
+
+		if (plan.isEmpty()) {
+			return plan;
+		}
+
+		// Work out the final source of every Data file touched, so each is only written once
+		for (File modDir : plan.uninstalling) {
+			ModInfo modInfo = repoMods.get(modDir);
+			if (modInfo.getFiles() != null) {
+				for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
+					plan.fileRestores.add(toDataPath(dataDir, dataDir.resolve(fileEntry.getValue()).resolve(fileEntry.getKey()).toFile()));
+				}
+			}
+			if (modInfo.getDeltas() != null) {
+				for (Map.Entry<String, String> deltaEntry : modInfo.getDeltas().entrySet()) {
+					plan.fileRestores.add(toDataPath(dataDir, getDeltaTarget(dataDir, deltaEntry)));
+				}
+			}
+			if (modInfo.getXml() != null) {
+				for (Map.Entry<String, Map<String, String>> xmlEntry : modInfo.getXml().entrySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(xmlEntry.getKey()).toFile());
+					plan.xmlRemovals.computeIfAbsent(dataPath, a -> new LinkedHashSet<>()).addAll(xmlEntry.getValue().keySet());
+				}
 			}
 		}
 
-		if (modInfo.getXml() != null) {
-			for (String xmlFilePath : modInfo.getXml().keySet()) {
-				File targetFile = dataDir.resolve(xmlFilePath).toFile();
-				if (!targetFile.exists()) {
-					throw new IOException("Could not find file " + targetFile.getAbsolutePath() + " defined in " + modInfo.getName());
+		// Remaining mods only need reapplying where a removed mod overlapped them
+		for (File modDir : plan.keeping) {
+			ModInfo modInfo = repoMods.get(modDir);
+			if (modInfo.getFiles() != null) {
+				for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(fileEntry.getValue()).resolve(fileEntry.getKey()).toFile());
+					if (plan.fileRestores.contains(dataPath)) {
+						plan.putCopy(dataPath, modDir.toPath().resolve(fileEntry.getKey()));
+					}
 				}
+			}
+			if (modInfo.getDeltas() != null) {
+				for (Map.Entry<String, String> deltaEntry : modInfo.getDeltas().entrySet()) {
+					String dataPath = toDataPath(dataDir, getDeltaTarget(dataDir, deltaEntry));
+					if (plan.fileRestores.contains(dataPath)) {
+						plan.putDelta(dataPath, modDir.toPath().resolve(deltaEntry.getKey()));
+					}
+				}
+			}
+			if (modInfo.getXml() != null) {
+				for (Map.Entry<String, Map<String, String>> xmlEntry : modInfo.getXml().entrySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(xmlEntry.getKey()).toFile());
+					Set<String> removedXpaths = plan.xmlRemovals.getOrDefault(dataPath, Collections.emptySet());
+					for (Map.Entry<String, String> xpathEntry : xmlEntry.getValue().entrySet()) {
+						if (removedXpaths.contains(xpathEntry.getKey())) {
+							plan.xmlPatches.computeIfAbsent(dataPath, a -> new ArrayList<>()).add(new ModXmlApplicator.XmlPatch(modDir, xpathEntry.getKey(), xpathEntry.getValue()));
+						}
+					}
+				}
+			}
+		}
 
-				String replacementPath = "";
-				if (xmlFilePath.contains("/")) {
-					replacementPath = xmlFilePath.substring(0 , xmlFilePath.lastIndexOf('/'));
+		for (File modDir : plan.installing) {
+			ModInfo modInfo = repoMods.get(modDir);
+			if (modInfo.getFiles() != null) {
+				for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(fileEntry.getValue()).resolve(fileEntry.getKey()).toFile());
+					plan.putCopy(dataPath, modDir.toPath().resolve(fileEntry.getKey()));
+				}
+			}
+			if (modInfo.getDeltas() != null) {
+				for (Map.Entry<String, String> deltaEntry : modInfo.getDeltas().entrySet()) {
+					plan.putDelta(toDataPath(dataDir, getDeltaTarget(dataDir, deltaEntry)), modDir.toPath().resolve(deltaEntry.getKey()));
 				}
-				backup(targetFile, backupDir, targetFile.getName(), replacementPath);
+			}
+			if (modInfo.getXml() != null) {
+				for (Map.Entry<String, Map<String, String>> xmlEntry : modInfo.getXml().entrySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(xmlEntry.getKey()).toFile());
+					for (Map.Entry<String, String> xpathEntry : xmlEntry.getValue().entrySet()) {
+						plan.xmlPatches.computeIfAbsent(dataPath, a -> new ArrayList<>()).add(new ModXmlApplicator.XmlPatch(modDir, xpathEntry.getKey(), xpathEntry.getValue()));
+					}
+				}
+			}
+		}
+		plan.fileRestores.removeAll(plan.fileCopies.keySet());
+		plan.fileRestores.removeAll(plan.fileDeltas.keySet());
 
-				textArea.appendText("Replacing xml snippets within " + targetFile.getAbsolutePath() + "\n");
-				modXmlApplicator.apply(targetFile, modDir, modInfo.getXml().get(xmlFilePath));
+		// A later patch of the same XPath replaces whatever an earlier one put there, so only the last is applied
+		for (List<ModXmlApplicator.XmlPatch> patches : plan.xmlPatches.values()) {
+			Map<String, ModXmlApplicator.XmlPatch> lastPatches = new LinkedHashMap<>();
+			for (ModXmlApplicator.XmlPatch patch : patches) {
+				lastPatches.remove(patch.getXpath());
+				lastPatches.put(patch.getXpath(), patch);
 			}
+			patches.clear();
+			patches.addAll(lastPatches.values());
 		}
 
-		textArea.appendText("Installed " + modInfo.getName() + " successfully\n");
-		ModrollerConfig.getInstance().addInstalledMod(modDir.getName());
+		refreshPackageIndex();
+		addOperations(plan, backupStore);
+		return plan;
 	}
 
-	public void uninstall(File modDir, ModInfo modInfo) throws Exception {
-		textArea.appendText("Uninstalling " + modInfo.getName() + "\n");
-		File bb2Dir = ModrollerConfig.getInstance().getBb2Dir();
-		Path dataDir = bb2Dir.toPath().resolve("Data");
-		File backupDir = ModrollerConfig.getInstance().getOrCreateBackupDir();
+	/**
+	 * Lists the plan's operations in the order {@link #execute} carries them out, with the bytes each moves
+	 */
+	private void addOperations(InstallPlan plan, BackupStore backupStore) throws IOException {
+		for (String dataPath : plan.fileRestores) {
+			File backupFile = backupStore.find(dataPath);
+			plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.RESTORE, dataPath, null, "backup", backupFile == null ? -1 : backupFile.length()));
+		}
+
+		for (Map.Entry<String, Path> copyEntry : plan.fileCopies.entrySet()) {
+			String dataPath = copyEntry.getKey();
+			addBackupOperation(plan, backupStore, dataPath);
+			File sourceFile = copyEntry.getValue().toFile();
+			String source = sourceFile.getParentFile().getName() + "/" + sourceFile.getName();
+			plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.COPY, dataPath, null, source, sourceFile.isFile() ? sourceFile.length() : -1));
+		}
+
+		for (Map.Entry<String, Path> deltaEntry : plan.fileDeltas.entrySet()) {
+			String dataPath = deltaEntry.getKey();
+			addBackupOperation(plan, backupStore, dataPath);
+			File deltaFile = deltaEntry.getValue().toFile();
+			String source = deltaFile.getParentFile().getName() + "/" + deltaFile.getName();
+			plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.APPLY_DELTA, dataPath, null, source, deltaFile.isFile() ? DeltaAsset.getResultSize(deltaFile) : -1));
+		}
+
+		Set<String> xmlFiles = new LinkedHashSet<>(plan.xmlRemovals.keySet());
+		xmlFiles.addAll(plan.xmlPatches.keySet());
+		for (String dataPath : xmlFiles) {
+			addBackupOperation(plan, backupStore, dataPath);
 
-		if (modInfo.getFiles() != null) {
-			for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
-				String filename = fileEntry.getKey();
-				String replacementPath = fileEntry.getValue();
+			// The whole file is read and written once, while XPath operations only count their replacement
+			File targetFile = plan.dataDir.resolve(dataPath).toFile();
+			Set<String> removals = plan.xmlRemovals.getOrDefault(dataPath, Collections.emptySet());
+			File originalFile = removals.isEmpty() ? null : backupStore.find(dataPath);
+			long bytes = targetFile.isFile() ? targetFile.length() * 2 + (originalFile == null ? 0 : originalFile.length()) : -1;
+			plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.REWRITE_XML, dataPath, null, null, bytes));
 
-				File backupFile = backupDir.toPath().resolve(replacementPath).resolve(filename).toFile();
-				if (!backupFile.exists()) {
-					textArea.appendText("Warning: No backup at " + backupFile.getAbsolutePath() + "\n");
+			for (String xpath : removals) {
+				plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.RESTORE_XPATH, dataPath, xpath, "backup", 0));
+			}
+			for (ModXmlApplicator.XmlPatch patch : plan.xmlPatches.getOrDefault(dataPath, Collections.emptyList())) {
+				long patchBytes;
+				if (patch.getReplacement().startsWith("<")) {
+					patchBytes = patch.getReplacement().getBytes(StandardCharsets.UTF_8).length;
 				} else {
-					File targetFile = dataDir.resolve(replacementPath).resolve(filename).toFile();
-					textArea.appendText("Copying backup of " + filename + " to " + targetFile.getAbsolutePath() + "\n");
-					Files.copy(backupFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					File fragmentFile = patch.getModDir().toPath().resolve(patch.getReplacement()).toFile();
+					patchBytes = fragmentFile.isFile() ? fragmentFile.length() : -1;
 				}
+				plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.REPLACE_XPATH, dataPath, patch.getXpath(), patch.getModDir().getName(), patchBytes));
 			}
 		}
+	}
 
+	private void addBackupOperation(InstallPlan plan, BackupStore backupStore, String dataPath) throws IOException {
+		File targetFile = plan.dataDir.resolve(dataPath).toFile();
+		if (targetFile.isFile()) {
+			if (backupStore.find(dataPath) == null) {
+				plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.BACKUP, dataPath, null, null, targetFile.length()));
+			}
+		} else if (ModrollerConfig.getInstance().isLazyExtraction()) {
+			String packageName = getPackageIndex().findPackage("Data/" + dataPath);
+			if (packageName != null) {
+				plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.EXTRACT, dataPath, null, packageName, getPackageIndex().getStoredSize("Data/" + dataPath)));
+				plan.operations.add(new InstallPlan.Operation(InstallPlan.Action.BACKUP, dataPath, null, null, -1));
+			}
+		}
+	}
+
+	/**
+	 * Carries out a plan as one transaction, which fails without changing anything if the installed mods are no
+	 * longer those the plan was made from. Call from a worker thread, as the files of mods being installed may first
+	 * need fetching from the mod repo server.
+	 */
+	public void execute(InstallPlan plan) throws Exception {
+		// Fetched before taking the lock, so a slow server only holds up this install and not the rest of Modroller
+		for (File modDir : plan.installing) {
+			fetchModFiles(modDir);
+		}
+
+		// Mod files must not change underneath the transaction through a background update of the mod repo
+		synchronized (ModrollerConfig.getInstance().getModRepoLock()) {
+			executeLocked(plan);
+		}
+	}
 
-		if (modInfo.getXml() != null) {
-			for (String xmlFilePath : modInfo.getXml().keySet()) {
-				File targetFile = dataDir.resolve(xmlFilePath).toFile();
-				if (!targetFile.exists()) {
-					throw new IOException("Could not find file " + targetFile.getAbsolutePath() + " defined in " + modInfo.getName());
+	private void executeLocked(InstallPlan plan) throws Exception {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		Path dataDir = plan.dataDir;
+		BackupStore backupStore = getBackupStore();
+
+		Set<String> installedModNames = config.getInstalledMods();
+		if (!installedModNames.equals(plan.installedModNames)) {
+			throw new IOException("Installed mods changed since the install was planned");
+		}
+		if (plan.isEmpty()) {
+			logSink.log("Installed mods already match, nothing to do");
+			return;
+		}
+
+		for (File modDir : plan.uninstalling) {
+			logSink.log("Uninstalling " + plan.getModName(modDir));
+		}
+		for (File modDir : plan.installing) {
+			logSink.log("Installing " + plan.getModName(modDir));
+		}
+		refreshPackageIndex();
+
+		Set<String> xmlFiles = new LinkedHashSet<>(plan.xmlRemovals.keySet());
+		xmlFiles.addAll(plan.xmlPatches.keySet());
+
+		// Only content hashes stay true whatever happens to Data, what an install records is put back if it fails
+		Map<String, FileInstaller.Method> methodsBefore = getFileInstaller().getMethods();
+		Map<String, String> expectedHashesBefore = getSnapshotCache().getExpectedHashes();
+
+		PhaseMetrics metrics = PhaseMetrics.getInstance();
+		InstallJournal journal = InstallJournal.begin(config.getInstallJournalFile(), backupStore, dataDir, installedModNames);
+		try {
+			metrics.time("install.files", () -> {
+				for (String dataPath : plan.fileRestores) {
+					File targetFile = dataDir.resolve(dataPath).toFile();
+					File backupFile = backupStore.find(dataPath);
+					if (backupFile == null) {
+						logSink.log("Warning: No backup at " + backupStore.describe(dataPath).getAbsolutePath());
+					} else {
+						journal.record(dataPath);
+						restoreFile(dataPath, backupFile.toPath(), targetFile);
+					}
 				}
 
+				for (Map.Entry<String, Path> copyEntry : plan.fileCopies.entrySet()) {
+					String dataPath = copyEntry.getKey();
+					File targetFile = dataDir.resolve(dataPath).toFile();
+					extractOriginal(journal, dataPath, targetFile);
+					if (targetFile.exists()) {
+						backup(targetFile, dataPath);
+					} else {
+						logSink.log("No existing file at " + targetFile + " to back up");
+					}
+					journal.record(dataPath);
+					installFile(dataPath, copyEntry.getValue(), targetFile, copyEntry.getValue().getFileName().toString());
+				}
 
-				File backupFile = backupDir.toPath().resolve(xmlFilePath).toFile();
-				if (!backupFile.exists()) {
-					textArea.appendText("Error: Can not find backup at " + backupFile.getAbsolutePath() + "\n");
-				} else {
-					textArea.appendText("Rolling back XML changes to " + targetFile.getAbsolutePath() + "\n");
+				for (Map.Entry<String, Path> deltaEntry : plan.fileDeltas.entrySet()) {
+					String dataPath = deltaEntry.getKey();
+					File targetFile = dataDir.resolve(dataPath).toFile();
+					extractOriginal(journal, dataPath, targetFile);
+					if (targetFile.exists()) {
+						backup(targetFile, dataPath);
+					}
+					journal.record(dataPath);
+					installDelta(dataPath, deltaEntry.getValue(), targetFile);
+				}
+			});
+
+			metrics.time("install.xml", () -> {
+				for (String dataPath : xmlFiles) {
+					File targetFile = dataDir.resolve(dataPath).toFile();
+					extractOriginal(journal, dataPath, targetFile);
+					if (!targetFile.exists()) {
+						throw new IOException("Could not find file " + targetFile.getAbsolutePath());
+					}
+					backup(targetFile, dataPath);
+					journal.record(dataPath);
 
-					modXmlApplicator.remove(targetFile, backupFile, modInfo.getXml().get(xmlFilePath).keySet());
+					Set<String> removals = plan.xmlRemovals.get(dataPath);
+					if (removals != null) {
+						logSink.log("Rolling back XML changes to " + targetFile.getAbsolutePath());
+						modXmlApplicator.remove(targetFile, backupStore.find(dataPath), removals);
+					}
+					List<ModXmlApplicator.XmlPatch> patches = plan.xmlPatches.get(dataPath);
+					if (patches != null) {
+						logSink.log("Replacing xml snippets within " + targetFile.getAbsolutePath());
+						modXmlApplicator.applyAll(targetFile, patches);
+					}
+					getSnapshotCache().setExpectedHash(dataPath, getSnapshotCache().getHash(targetFile));
 				}
+			});
+
+			config.setInstalledMods(plan.getFinalModNames());
+			journal.commit();
+		} catch (Exception e) {
+			logSink.log("Error: " + e.getMessage() + ", rolling back");
+			journal.rollback();
+			getFileInstaller().setMethods(methodsBefore);
+			getSnapshotCache().setExpectedHashes(expectedHashesBefore);
+			throw e;
+		} finally {
+			// Saved either way, as a verify during the install may already have saved what it recorded
+			getFileInstaller().save();
+			getSnapshotCache().save();
+			pruneBackups();
+			metrics.report(logSink, "install.");
+		}
+
+		for (File modDir : plan.uninstalling) {
+			logSink.log("Uninstalled " + plan.getModName(modDir) + " successfully");
+		}
+		for (File modDir : plan.installing) {
+			logSink.log("Installed " + plan.getModName(modDir) + " successfully");
+		}
+	}
+
+	/**
+	 * Checks every Data file an installed mod manages still has the content the mod put there, such as after a
+	 * Steam update replaced some of them.
+	 *
+	 * Replaced files are compared with the mod's file, which needs no reading at all if they are still hard linked.
+	 * Patched XML files are compared with the hash recorded when they were last written. Other files are hashed in
+	 * parallel, and only if they changed since they were last hashed.
+	 *
+	 * @return Directory name of each installed mod mapped to a description of each of its files which no longer
+	 * matches, empty if the mod is fully in effect
+	 */
+	public Map<String, List<String>> verify(Map<File, ModInfo> repoMods) throws Exception {
+		synchronized (ModrollerConfig.getInstance().getModRepoLock()) {
+			try (PhaseMetrics.Timer timer = PhaseMetrics.getInstance().start("verify")) {
+				return verifyLocked(repoMods, null, null, timer.getPhase());
+			} finally {
+				getSnapshotCache().save();
 			}
 		}
+	}
+
+	/**
+	 * Checks only the installed mods' files among the given paths, after they were changed by something other than
+	 * Modroller. A backed up file which was replaced is taken to be the game's new original and backed up again, so
+	 * uninstalling restores it rather than the outdated one.
+	 *
+	 * @return Directory name of each installed mod mapped to the problems found with its changed files
+	 */
+	public Map<String, List<String>> verifyChanged(Map<File, ModInfo> repoMods, Set<String> changedDataPaths) throws Exception {
+		synchronized (ModrollerConfig.getInstance().getModRepoLock()) {
+			Set<String> replacedPaths = ConcurrentHashMap.newKeySet();
+			Map<String, List<String>> problems;
+			try (PhaseMetrics.Timer timer = PhaseMetrics.getInstance().start("verify.changed")) {
+				problems = verifyLocked(repoMods, changedDataPaths, replacedPaths, timer.getPhase());
+			} finally {
+				getSnapshotCache().save();
+			}
 
+			Path dataDir = ModrollerConfig.getInstance().getBb2Dir().toPath().resolve("Data");
+			for (String dataPath : replacedPaths) {
+				if (getBackupStore().find(dataPath) != null) {
+					getBackupStore().replace(dataPath, dataDir.resolve(dataPath).toFile());
+					logSink.log("Backed up the changed original of " + dataPath);
+				}
+			}
+			return problems;
+		}
+	}
 
-		textArea.appendText("Uninstalled " + modInfo.getName() + " successfully\n");
-		ModrollerConfig.getInstance().removeInstalledMod(modDir.getName());
+	/**
+	 * @return Paths relative to Data which Modroller has changed, so are worth watching
+	 */
+	public Set<String> getBackedUpDataPaths() throws IOException {
+		return getBackupStore().getDataPaths();
 	}
 
-	private void backup(File targetFile, File backupDir, String filename, String replacementPath) throws IOException {
-		Path backupTargetDir = backupDir.toPath().resolve(replacementPath);
-		File backupFile = backupTargetDir.resolve(filename).toFile();
-		if (!backupFile.exists()) {
-			textArea.appendText("Creating backup of " + filename + " to " + backupFile.getAbsolutePath() + "\n");
-			Files.createDirectories(backupTargetDir);
-			Files.copy(targetFile.toPath(), backupFile.toPath());
+	/**
+	 * @param onlyDataPaths Paths to check, or null for all
+	 * @param replacedPaths Collects paths whose file exists but has other content, if not null
+	 */
+	private Map<String, List<String>> verifyLocked(Map<File, ModInfo> repoMods, Set<String> onlyDataPaths, Set<String> replacedPaths,
+			PhaseMetrics.Phase phase) throws Exception {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		Path dataDir = config.getBb2Dir().toPath().resolve("Data");
+		FileSnapshotCache snapshotCache = getSnapshotCache();
+
+		Map<String, File> modDirsByName = new LinkedHashMap<>();
+		for (File modDir : repoMods.keySet()) {
+			modDirsByName.put(modDir.getName(), modDir);
 		}
+
+		// Of several mods replacing a file the last one installed is in effect, while every mod patching it is
+		Map<String, List<String>> problems = new LinkedHashMap<>();
+		Map<String, Path> fileSources = new LinkedHashMap<>();
+		Map<String, String> fileOwners = new HashMap<>();
+		Set<String> deltaPaths = new LinkedHashSet<>();
+		Map<String, List<String>> xmlOwners = new LinkedHashMap<>();
+		for (String installedModName : config.getInstalledMods()) {
+			File modDir = modDirsByName.get(installedModName);
+			if (modDir == null) {
+				continue;
+			}
+			problems.put(installedModName, new ArrayList<>());
+			ModInfo modInfo = repoMods.get(modDir);
+			if (modInfo.getFiles() != null) {
+				for (Map.Entry<String, String> fileEntry : modInfo.getFiles().entrySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(fileEntry.getValue()).resolve(fileEntry.getKey()).toFile());
+					fileSources.put(dataPath, modDir.toPath().resolve(fileEntry.getKey()));
+					deltaPaths.remove(dataPath);
+					fileOwners.put(dataPath, installedModName);
+				}
+			}
+			if (modInfo.getDeltas() != null) {
+				for (Map.Entry<String, String> deltaEntry : modInfo.getDeltas().entrySet()) {
+					String dataPath = toDataPath(dataDir, getDeltaTarget(dataDir, deltaEntry));
+					fileSources.remove(dataPath);
+					deltaPaths.add(dataPath);
+					fileOwners.put(dataPath, installedModName);
+				}
+			}
+			if (modInfo.getXml() != null) {
+				for (String xmlPath : modInfo.getXml().keySet()) {
+					String dataPath = toDataPath(dataDir, dataDir.resolve(xmlPath).toFile());
+					xmlOwners.computeIfAbsent(dataPath, a -> new ArrayList<>()).add(installedModName);
+				}
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(config.getIoThreadBudget(), runnable -> {
+			Thread thread = new Thread(runnable, "install-verifier");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<String> dataPaths = new ArrayList<>();
+			List<Callable<String>> checks = new ArrayList<>();
+			for (Map.Entry<String, Path> sourceEntry : fileSources.entrySet()) {
+				String dataPath = sourceEntry.getKey();
+				if (onlyDataPaths != null && !onlyDataPaths.contains(dataPath)) {
+					continue;
+				}
+				File sourceFile = sourceEntry.getValue().toFile();
+				dataPaths.add(dataPath);
+				File targetFile = dataDir.resolve(dataPath).toFile();
+				checks.add(timeCheck(phase, dataPath, targetFile, () -> {
+					if (!targetFile.exists()) {
+						return dataPath + " is missing";
+					}
+					if (!sourceFile.exists()) {
+						return dataPath + " can not be checked, " + sourceFile.getName() + " is missing from the mod";
+					}
+					if (FileSnapshotCache.isSameFile(targetFile, sourceFile)) {
+						return null;
+					}
+					if (snapshotCache.getHash(targetFile).equals(snapshotCache.getHash(sourceFile))) {
+						return null;
+					}
+					if (replacedPaths != null) {
+						replacedPaths.add(dataPath);
+					}
+					return dataPath + " was replaced";
+				}));
+			}
+			// Results of deltas and XML patches are only known by the hash recorded when they were written
+			Set<String> expectedHashPaths = new LinkedHashSet<>(deltaPaths);
+			expectedHashPaths.addAll(xmlOwners.keySet());
+			for (String dataPath : expectedHashPaths) {
+				if (onlyDataPaths != null && !onlyDataPaths.contains(dataPath)) {
+					continue;
+				}
+				ObjectId expectedHash = snapshotCache.getExpectedHash(dataPath);
+				if (expectedHash == null) {
+					// Patched before hashes were recorded, so there is nothing to compare with
+					continue;
+				}
+				dataPaths.add(dataPath);
+				File targetFile = dataDir.resolve(dataPath).toFile();
+				checks.add(timeCheck(phase, dataPath, targetFile, () -> {
+					ObjectId hash = snapshotCache.getHash(targetFile);
+					if (hash == null) {
+						return dataPath + " is missing";
+					}
+					if (hash.equals(expectedHash)) {
+						return null;
+					}
+					if (replacedPaths != null) {
+						replacedPaths.add(dataPath);
+					}
+					return dataPath + " was replaced";
+				}));
+			}
+
+			List<Future<String>> results = executor.invokeAll(checks);
+			for (int cursor = 0; cursor < results.size(); cursor++) {
+				String problem;
+				try {
+					problem = results.get(cursor).get();
+				} catch (ExecutionException e) {
+					problem = dataPaths.get(cursor) + " could not be read: " + e.getCause().getMessage();
+				}
+				if (problem == null) {
+					continue;
+				}
+				String dataPath = dataPaths.get(cursor);
+				List<String> owners = fileOwners.containsKey(dataPath) ? Collections.singletonList(fileOwners.get(dataPath)) : xmlOwners.get(dataPath);
+				for (String owner : owners) {
+					problems.get(owner).add(problem);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return problems;
+	}
+
+	private static Callable<String> timeCheck(PhaseMetrics.Phase phase, String dataPath, File targetFile, Callable<String> check) {
+		return () -> {
+			long start = System.nanoTime();
+			try {
+				return check.call();
+			} finally {
+				phase.recordFile(dataPath, System.nanoTime() - start, targetFile.length());
+			}
+		};
+	}
+
+	/**
+	 * Rolls back a batch which was interrupted before it could finish, if there is one
+	 *
+	 * @return Whether anything was rolled back
+	 */
+	public boolean recoverInterruptedTransaction() throws IOException {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		// Under the lock, so an install running in the background is not mistaken for one which was interrupted
+		synchronized (config.getModRepoLock()) {
+			File journalFile = config.getInstallJournalFile();
+			if (!journalFile.exists()) {
+				return false;
+			}
+
+			logSink.log("Rolling back an install which did not finish");
+			List<String> installedMods = InstallJournal.recover(journalFile, getBackupStore(), config.getBb2Dir().toPath().resolve("Data"));
+			if (installedMods != null) {
+				config.setInstalledMods(installedMods);
+			}
+			pruneBackups();
+			return true;
+		}
+	}
+
+	/**
+	 * Drops the journal's copies of files once its install is over, keeping only the backups of originals
+	 */
+	private void pruneBackups() {
+		try {
+			if (!ModrollerConfig.getInstance().getInstallJournalFile().exists()) {
+				getBackupStore().prune();
+			}
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * A partial clone of the mod repo only has a mod's files once something needs them
+	 */
+	private void fetchModFiles(File modDir) throws Exception {
+		File modRepoDir = ModrollerConfig.getInstance().getModRepoDir();
+		if (PartialModRepo.isPartial(modRepoDir)) {
+			logSink.log("Fetching files of " + modDir.getName());
+			PartialModRepo.materialize(modRepoDir, modDir.getName());
+		}
+	}
+
+	/**
+	 * Extracts the original of a Data file from its package when packages are only indexed and it is not in Data yet
+	 */
+	private void extractOriginal(InstallJournal journal, String dataPath, File targetFile) throws IOException {
+		if (targetFile.exists() || !ModrollerConfig.getInstance().isLazyExtraction()) {
+			return;
+		}
+		PackageIndex packageIndex = getPackageIndex();
+		String name = "Data/" + dataPath;
+		String packageName = packageIndex.findPackage(name);
+		if (packageName == null) {
+			return;
+		}
+
+		journal.record(dataPath);
+		long start = System.nanoTime();
+		Path extracted = packageIndex.extract(ModrollerConfig.getInstance().getBb2Dir(), name);
+		PhaseMetrics.Phase phase = PhaseMetrics.getInstance().getPhase("install.extract");
+		long size = Files.size(extracted);
+		phase.addBytesRead(packageIndex.getStoredSize(name));
+		phase.addBytesWritten(size);
+		phase.recordFile(dataPath, System.nanoTime() - start, size);
+		logSink.log("Extracted " + dataPath + " from " + packageName);
+	}
+
+	private void backup(File targetFile, String dataPath) throws IOException {
+		if (getBackupStore().backup(dataPath, targetFile)) {
+			logSink.log("Creating backup of " + dataPath);
+		}
+	}
+
+	/**
+	 * Lets installs warn where a mod overrides files or XPaths of mods applied before it
+	 */
+	public void setConflictIndex(ConflictIndex conflictIndex) {
+		this.conflictIndex = conflictIndex;
+	}
+
+	private void warnConflicts(Map<File, ModInfo> repoMods, File modDir, Collection<String> appliedModNames) {
+		Map<String, ModInfo> modsByName = new HashMap<>();
+		for (Map.Entry<File, ModInfo> modEntry : repoMods.entrySet()) {
+			modsByName.put(modEntry.getKey().getName(), modEntry.getValue());
+		}
+
+		for (Map.Entry<String, List<String>> conflict : conflictIndex.findConflicts(modDir.getName(), appliedModNames).entrySet()) {
+			ModInfo other = modsByName.get(conflict.getKey());
+			String otherName = other == null ? conflict.getKey() : other.getName();
+			logSink.log("Warning: " + repoMods.get(modDir).getName() + " overrides " + otherName + " for " + String.join(", ", conflict.getValue()));
+		}
+	}
+
+	/**
+	 * Links or copies a file into Data, replacing rather than writing into whatever is there
+	 */
+	private void installFile(String dataPath, Path source, File targetFile, String description) throws IOException {
+		long start = System.nanoTime();
+		FileInstaller.Method previous = getFileInstaller().getMethod(dataPath);
+		FileInstaller.Method method = getFileInstaller().install(dataPath, source, targetFile.toPath());
+
+		// A hard link moves no content, so only copies count as bytes read and written
+		PhaseMetrics.Phase phase = PhaseMetrics.getInstance().getPhase("install.files");
+		long size = targetFile.length();
+		if (method == FileInstaller.Method.COPY) {
+			phase.addBytesRead(size);
+			phase.addBytesWritten(size);
+		}
+		phase.recordFile(dataPath, System.nanoTime() - start, size);
+
+		String action = method == FileInstaller.Method.LINK ? "Linked " : "Copied ";
+		String replaced = previous == FileInstaller.Method.LINK ? " in place of a linked file" : "";
+		logSink.log(action + description + " to " + targetFile.getAbsolutePath() + replaced);
+	}
+
+	/**
+	 * Copies a backup into Data. Never linked, so a later write into the Data file can not change the backup.
+	 */
+	private void restoreFile(String dataPath, Path backup, File targetFile) throws IOException {
+		long start = System.nanoTime();
+		getFileInstaller().copy(dataPath, backup, targetFile.toPath());
+
+		PhaseMetrics.Phase phase = PhaseMetrics.getInstance().getPhase("install.files");
+		long size = targetFile.length();
+		phase.addBytesRead(size);
+		phase.addBytesWritten(size);
+		phase.recordFile(dataPath, System.nanoTime() - start, size);
+		logSink.log("Copied backup of " + dataPath + " to " + targetFile.getAbsolutePath());
+	}
+
+	/**
+	 * Writes the result of a mod's delta against the backed up original into Data
+	 */
+	private void installDelta(String dataPath, Path delta, File targetFile) throws IOException {
+		File originalFile = getBackupStore().find(dataPath);
+		if (originalFile == null) {
+			throw new IOException("Can not apply " + delta.getFileName() + " without the original " + targetFile.getAbsolutePath());
+		}
+
+		long start = System.nanoTime();
+		// The snapshot cache only hashes the original again if it changed since it was last hashed
+		ObjectId originalId = getSnapshotCache().getHash(originalFile);
+		ObjectId deltaOriginalId = DeltaAsset.getOriginalId(delta.toFile());
+		if (!deltaOriginalId.equals(originalId)) {
+			throw new IOException(delta.getFileName() + " was made from another version of " + dataPath + " ("
+					+ deltaOriginalId.abbreviate(8).name() + ") than the backed up original ("
+					+ originalId.abbreviate(8).name() + "), it needs making again against the current game files");
+		}
+		getFileInstaller().installDelta(dataPath, originalFile.toPath(), originalId, delta, targetFile.toPath());
+		PhaseMetrics.Phase phase = PhaseMetrics.getInstance().getPhase("install.files");
+		long size = targetFile.length();
+		phase.addBytesRead(Files.size(delta));
+		phase.addBytesWritten(size);
+		phase.recordFile(dataPath, System.nanoTime() - start, size);
+		getSnapshotCache().setExpectedHash(dataPath, getSnapshotCache().getHash(targetFile));
+		logSink.log("Applied " + delta.getFileName() + " to " + targetFile.getAbsolutePath());
+	}
+
+	private static File getDeltaTarget(Path dataDir, Map.Entry<String, String> deltaEntry) {
+		return dataDir.resolve(deltaEntry.getValue()).resolve(DeltaAsset.getTargetName(deltaEntry.getKey())).toFile();
+	}
+
+	private synchronized FileInstaller getFileInstaller() throws IOException {
+		if (fileInstaller == null) {
+			fileInstaller = FileInstaller.open(ModrollerConfig.getInstance().getInstalledFilesRecordFile());
+		}
+		return fileInstaller;
+	}
+
+	private synchronized FileSnapshotCache getSnapshotCache() throws IOException {
+		if (snapshotCache == null) {
+			snapshotCache = FileSnapshotCache.open(ModrollerConfig.getInstance().getFileSnapshotFile());
+		}
+		return snapshotCache;
+	}
+
+	private synchronized PackageIndex getPackageIndex() throws IOException {
+		if (packageIndex == null) {
+			packageIndex = PackageIndex.load(ModrollerConfig.getInstance().getPackageIndexFile());
+		}
+		return packageIndex;
+	}
+
+	/**
+	 * Reads the tables of any packages which changed since the index was last saved, such as by a game update
+	 */
+	private void refreshPackageIndex() throws IOException {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		if (config.isLazyExtraction() && getPackageIndex().refresh(config.getBb2Dir().toPath().resolve("Data").resolve("Packages").toFile())) {
+			getPackageIndex().save(config.getPackageIndexFile());
+		}
+	}
+
+	private synchronized BackupStore getBackupStore() throws IOException {
+		if (backupStore == null) {
+			backupStore = BackupStore.open(ModrollerConfig.getInstance().getOrCreateBackupDir());
+		}
+		return backupStore;
+	}
+
+	private static String toDataPath(Path dataDir, File file) {
+		return dataDir.relativize(file.toPath()).toString().replace('\\', '/');
 	}
 }
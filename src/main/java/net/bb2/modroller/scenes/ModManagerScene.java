@@ -1,143 +1,447 @@
 package net.bb2.modroller.scenes;
 
+import javafx.application.Platform;
 import javafx.geometry.Insets;
+import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
 import javafx.stage.Stage;
+import net.bb2.modroller.config.ConflictIndex;
 import net.bb2.modroller.config.ModInfo;
 import net.bb2.modroller.config.ModParser;
 import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.config.PartialModRepo;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ModManagerScene extends ModRollerScene {
 
-	private final TreeView treeView;
-	private final TreeItem rootTreeItem;
+	private final TreeView<Object> treeView;
+	private final TreeItem<Object> rootTreeItem;
 	private final TextArea textArea;
+	private final LogSink logSink;
 	private Insets leftPad20 = new Insets(5, 0, 5, 20);
 	private final ModApplicator modApplicator;
-
-	private Map<String, GridPane> groups = new LinkedHashMap<>();
+	private final ThumbnailCache thumbnailCache = new ThumbnailCache();
+	// Installs run one at a time off the FX thread, as they may wait on the mod repo server or an update
+	private final ExecutorService installExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "mod-installer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private volatile Map<File, ModInfo> repoMods = new LinkedHashMap<>();
+	private ConflictIndex conflictIndex;
+	private DataWatcher dataWatcher;
 
 	public ModManagerScene() {
-		treeView = new TreeView();
+		// Each mod is its own row, so only the rows on screen are ever laid out
+		treeView = new TreeView<>();
 		treeView.setPrefWidth(SceneDefaults.WIDTH);
 		treeView.setPrefHeight(SceneDefaults.HEIGHT);
 		treeView.setPadding(new Insets(12, 12, 12, 12));
+		treeView.setCellFactory(view -> new ModCell());
 
-		rootTreeItem = new TreeItem("Mod listing");
+		rootTreeItem = new TreeItem<>("Loading mods...");
 		treeView.setRoot(rootTreeItem);
 
-		ScrollPane scrollPane = new ScrollPane();
-		scrollPane.setPrefSize(SceneDefaults.WIDTH, SceneDefaults.HEIGHT);
-		scrollPane.setContent(treeView);
-
 		textArea = new TextArea();
 		textArea.setEditable(false);
 
 		GridPane outerGrid = new GridPane();
-		outerGrid.addRow(0, scrollPane);
+		outerGrid.addRow(0, treeView);
 		outerGrid.addRow(1, textArea);
 
 		this.scene = new Scene(outerGrid, SceneDefaults.WIDTH, SceneDefaults.HEIGHT);
 
-		modApplicator = new ModApplicator(textArea);
+		logSink = new LogSink(textArea);
+		modApplicator = new ModApplicator(logSink);
 	}
 
 	@Override
 	public void show(Stage primaryStage) {
 		super.show(primaryStage);
+		try {
+			logSink.setLogFile(ModrollerConfig.getInstance().getLogFile());
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+		populate();
+		startDataWatcher();
+	}
+
+	@Override
+	public void close() {
+		if (dataWatcher != null) {
+			dataWatcher.close();
+		}
+		installExecutor.shutdown();
+		logSink.close();
+	}
+
+	/**
+	 * Reloads the mod listing, such as after the mod repo was updated
+	 */
+	public void refresh() {
 		populate();
 	}
 
+	/**
+	 * Reads the installed and available mods in the background, then fills the tree with one item per mod
+	 */
 	private void populate() {
 		rootTreeItem.getChildren().clear();
+		rootTreeItem.setValue("Loading mods...");
 		rootTreeItem.setExpanded(true);
 
-		try {
-			Set<String> installedMods = ModrollerConfig.getInstance().getInstalledMods();
-			Map<File, ModInfo> repoMods = new ModParser().getRepoMods();
-			ArrayList<File> modDirs = new ArrayList<>(repoMods.keySet());
-			modDirs.sort(Comparator.comparing(File::getName));
-
-			for (File modDir : modDirs) {
-				ModInfo modInfo = repoMods.get(modDir);
-
-				String category = modInfo.getCategory();
-				GridPane grid = groups.computeIfAbsent(category, a -> new GridPane());
-
-				CheckBox checkbox = new CheckBox();
-				checkbox.setPadding(leftPad20);
-				checkbox.selectedProperty().setValue(installedMods.contains(modDir.getName()));
-				checkbox.selectedProperty().addListener((observableValue, aBoolean, t1) -> {
-					try {
-
-						if (!aBoolean) {
-							modApplicator.install(modDir, modInfo);
-						} else {
-							modApplicator.uninstall(modDir, modInfo);
-						}
-					} catch (Exception e) {
-						textArea.appendText("Error: " + e.getMessage() + "\n");
-						System.err.println(e);
-					}
-				});
-				Label nameLabel = new Label(modInfo.getName());
-				nameLabel.setStyle("-fx-font-weight: bold");
-				nameLabel.setPadding(leftPad20);
-				Label descriptionLabel = new Label(modInfo.getDescription());
-				descriptionLabel.setPadding(leftPad20);
+		Thread thread = new Thread(() -> {
+			try {
+				modApplicator.recoverInterruptedTransaction();
+			} catch (Exception e) {
+				logSink.log("Error rolling back interrupted install: " + e.getMessage());
+				System.err.println(e);
+			}
 
-				grid.addRow(grid.getRowCount(), checkbox, nameLabel, descriptionLabel);
+			try {
+				Set<String> installedMods = new LinkedHashSet<>(ModrollerConfig.getInstance().getInstalledMods());
+				Map<File, ModInfo> loadedMods = new ModParser().getRepoMods();
+				ConflictIndex loadedConflicts = ConflictIndex.build(loadedMods);
+				Platform.runLater(() -> {
+					conflictIndex = loadedConflicts;
+					modApplicator.setConflictIndex(loadedConflicts);
+					showMods(loadedMods, installedMods);
+				});
+				verifyInstalledMods(loadedMods);
+			} catch (Exception e) {
+				logSink.log("Error parsing mods: " + e.getMessage());
+				logSink.log("You may need to upgrade to a newer version of Modroller");
+				System.err.println(e);
+			}
+		}, "mod-loader");
+		thread.setDaemon(true);
+		thread.start();
+	}
 
-				if (modInfo.getPreviewImage() != null && modInfo.getPreviewImage().length() > 0) {
-					Button previewButton = new Button("Preview");
-					descriptionLabel.setPadding(new Insets(5, 20, 5, 20));
+	/**
+	 * Warns about installed mods with files which were since replaced, such as by a Steam update
+	 */
+	private void verifyInstalledMods(Map<File, ModInfo> loadedMods) {
+		try {
+			Map<String, List<String>> problems = modApplicator.verify(loadedMods);
+			warnProblems(loadedMods, problems);
+			Platform.runLater(() -> markProblems(problems, true));
+		} catch (Exception e) {
+			logSink.log("Error checking installed mods: " + e.getMessage());
+			System.err.println(e);
+		}
+	}
 
-					File previewFile = modDir.toPath().resolve(modInfo.getPreviewImage()).toFile();
-					Image previewImage = new Image(previewFile.toURI().toString());
-					ImageView imageView = new ImageView(previewImage);
+	/**
+	 * Watches Data for the rest of the session, so a game update while Modroller is open is noticed straight away
+	 */
+	private void startDataWatcher() {
+		if (dataWatcher != null) {
+			return;
+		}
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		dataWatcher = new DataWatcher(config.getBb2Dir(), () -> modApplicator.getBackedUpDataPaths(), new DataWatcher.Listener() {
+			@Override
+			public void onChanges(Set<String> dataPaths, Set<String> packageNames) {
+				// Queued behind any install, so packages are never extracted while one reads them
+				installExecutor.execute(() -> onDataChanged(dataPaths, packageNames));
+			}
 
-					StackPane stackPane = new StackPane();
-					stackPane.getChildren().add(imageView);
+			@Override
+			public void onPolling() {
+				logSink.log("Checking Data for changes every few seconds, as it can not be watched");
+			}
+		});
+		dataWatcher.start(config.isPollingWatch());
+	}
 
-					Scene previewScene = new Scene(stackPane);
+	/**
+	 * Extracts only the packages which changed, then checks only the files which changed. Files the extraction
+	 * writes come back as changes of their own.
+	 */
+	private void onDataChanged(Set<String> dataPaths, Set<String> packageNames) {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		if (!packageNames.isEmpty()) {
+			logSink.log("Found new packages " + String.join(", ", packageNames));
+			new ProcessPackagesTask(config.getBb2Dir(), packageNames, new FxTaskListener(logSink, null, null), () -> { }).run();
+		}
 
-					Stage previewWindow = new Stage();
-					previewWindow.setTitle(modInfo.getName() + " preview");
-					previewWindow.setScene(previewScene);
+		if (!dataPaths.isEmpty()) {
+			Map<File, ModInfo> currentMods = repoMods;
+			try {
+				Map<String, List<String>> problems = modApplicator.verifyChanged(currentMods, dataPaths);
+				warnProblems(currentMods, problems);
+				Platform.runLater(() -> markProblems(problems, false));
+			} catch (Exception e) {
+				logSink.log("Error checking changed files: " + e.getMessage());
+				System.err.println(e);
+			}
+		}
+	}
 
-					previewButton.setOnAction(event -> {
-						previewWindow.show();
-					});
+	private void warnProblems(Map<File, ModInfo> loadedMods, Map<String, List<String>> problems) {
+		for (Map.Entry<String, List<String>> modProblems : problems.entrySet()) {
+			if (!modProblems.getValue().isEmpty()) {
+				File modDir = loadedMods.keySet().stream().filter(dir -> dir.getName().equals(modProblems.getKey())).findFirst().get();
+				logSink.log("Warning: " + loadedMods.get(modDir).getName() + " is no longer fully installed, uninstall and install it again. "
+						+ String.join(", ", modProblems.getValue()));
+			}
+		}
+	}
 
-					grid.add(previewButton, 3, grid.getRowCount() - 1);
+	/**
+	 * Shows which mods are no longer fully installed in the list
+	 *
+	 * @param complete Whether every installed mod was checked, so mods without problems are clear of earlier ones
+	 */
+	private void markProblems(Map<String, List<String>> problems, boolean complete) {
+		for (TreeItem<Object> groupItem : rootTreeItem.getChildren()) {
+			for (TreeItem<Object> modItem : groupItem.getChildren()) {
+				ModEntry entry = (ModEntry) modItem.getValue();
+				List<String> modProblems = problems.get(entry.modDir.getName());
+				if (modProblems != null && !modProblems.isEmpty()) {
+					entry.problems = modProblems;
+				} else if (complete) {
+					entry.problems = null;
 				}
-
 			}
+		}
+		treeView.refresh();
+	}
 
-			List<String> groupNames = new ArrayList<>(groups.keySet());
-			groupNames.sort(String::compareTo);
-			for (String groupName : groupNames) {
-				TreeItem groupItem = new TreeItem(groupName);
-				groupItem.getChildren().add(new TreeItem<>(groups.get(groupName)));
-				rootTreeItem.getChildren().add(groupItem);
-			}
+	private void showMods(Map<File, ModInfo> loadedMods, Set<String> installedMods) {
+		repoMods = loadedMods;
+		ArrayList<File> modDirs = new ArrayList<>(loadedMods.keySet());
+		modDirs.sort(Comparator.comparing(File::getName));
 
+		Map<String, TreeItem<Object>> groups = new TreeMap<>();
+		for (File modDir : modDirs) {
+			ModInfo modInfo = loadedMods.get(modDir);
+			TreeItem<Object> groupItem = groups.computeIfAbsent(modInfo.getCategory(), TreeItem::new);
+			groupItem.getChildren().add(new TreeItem<>(new ModEntry(modDir, modInfo, installedMods.contains(modDir.getName()))));
+		}
+
+		rootTreeItem.setValue("Mod listing");
+		rootTreeItem.getChildren().setAll(groups.values());
+	}
 
+	/**
+	 * Asks about conflicts on the FX thread, then installs or uninstalls in the background. The mod's checkbox stays
+	 * disabled until that is done.
+	 */
+	private void toggle(ModEntry entry, boolean install) {
+		try {
+			Set<String> installedMods = new LinkedHashSet<>(ModrollerConfig.getInstance().getInstalledMods());
+			if (install && !confirmConflicts(entry, installedMods)) {
+				return;
+			}
 		} catch (Exception e) {
-			textArea.appendText("Error parsing mods: " + e.getMessage() + "\n");
-			textArea.appendText("You may need to upgrade to a newer version of Modroller\n");
+			logSink.log("Error: " + e.getMessage());
 			System.err.println(e);
+			return;
+		}
+		entry.pendingInstall = install;
+		treeView.refresh();
+
+		Map<File, ModInfo> currentMods = repoMods;
+		installExecutor.execute(() -> {
+			boolean succeeded = false;
+			try {
+				// Read again, as earlier toggles may have finished since this one was asked for
+				Set<String> targetMods = new LinkedHashSet<>(ModrollerConfig.getInstance().getInstalledMods());
+				if (install) {
+					targetMods.add(entry.modDir.getName());
+				} else {
+					targetMods.remove(entry.modDir.getName());
+				}
+				modApplicator.applyTransaction(currentMods, targetMods);
+				succeeded = true;
+			} catch (Exception e) {
+				logSink.log("Error: " + e.getMessage());
+				System.err.println(e);
+			}
+
+			boolean done = succeeded;
+			Platform.runLater(() -> {
+				if (done) {
+					entry.installed = install;
+					entry.problems = null;
+				}
+				entry.pendingInstall = null;
+				treeView.refresh();
+			});
+		});
+	}
+
+	/**
+	 * @return Whether to go ahead installing a mod which would override some of the installed ones
+	 */
+	private boolean confirmConflicts(ModEntry entry, Set<String> installedMods) {
+		if (conflictIndex == null) {
+			return true;
+		}
+		Map<String, List<String>> conflicts = conflictIndex.findConflicts(entry.modDir.getName(), installedMods);
+		if (conflicts.isEmpty()) {
+			return true;
+		}
+
+		Map<File, ModInfo> currentMods = repoMods;
+		StringBuilder message = new StringBuilder();
+		for (Map.Entry<String, List<String>> conflict : conflicts.entrySet()) {
+			File otherDir = currentMods.keySet().stream().filter(modDir -> modDir.getName().equals(conflict.getKey())).findFirst().orElse(null);
+			String otherName = otherDir == null ? conflict.getKey() : currentMods.get(otherDir).getName();
+			message.append(otherName).append(": ").append(String.join(", ", conflict.getValue())).append('\n');
 		}
 
+		Alert alert = new Alert(Alert.AlertType.CONFIRMATION, message.toString(), ButtonType.OK, ButtonType.CANCEL);
+		alert.setTitle("Mod conflict");
+		alert.setHeaderText(entry.modInfo.getName() + " changes the same things as these installed mods, and will override them");
+		return alert.showAndWait().filter(ButtonType.OK::equals).isPresent();
+	}
+
+	/**
+	 * Fetches the preview image first if the mod repo is a partial clone which does not have it yet
+	 */
+	private void showPreview(ModEntry entry) {
+		File previewFile = entry.modDir.toPath().resolve(entry.modInfo.getPreviewImage()).toFile();
+		if (previewFile.exists()) {
+			openPreviewWindow(entry, previewFile);
+			return;
+		}
 
+		Thread thread = new Thread(() -> {
+			try {
+				File modRepoDir = ModrollerConfig.getInstance().getModRepoDir();
+				String path = modRepoDir.toPath().relativize(previewFile.toPath()).toString().replace('\\', '/');
+				PartialModRepo.materialize(modRepoDir, path);
+				Platform.runLater(() -> openPreviewWindow(entry, previewFile));
+			} catch (Exception e) {
+				logSink.log("Error fetching preview of " + entry.modInfo.getName() + ": " + e.getMessage());
+				System.err.println(e);
+			}
+		}, "preview-fetcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void openPreviewWindow(ModEntry entry, File previewFile) {
+		ImageView imageView = new ImageView(new Image(previewFile.toURI().toString(), true));
+
+		StackPane stackPane = new StackPane();
+		stackPane.getChildren().add(imageView);
+
+		Stage previewWindow = new Stage();
+		previewWindow.setTitle(entry.modInfo.getName() + " preview");
+		previewWindow.setScene(new Scene(stackPane));
+		previewWindow.show();
+	}
+
+	private static class ModEntry {
+		private final File modDir;
+		private final ModInfo modInfo;
+		private boolean installed;
+		private Boolean pendingInstall; // What is being done to the mod in the background, or null if nothing
+		private List<String> problems;
+
+		ModEntry(File modDir, ModInfo modInfo, boolean installed) {
+			this.modDir = modDir;
+			this.modInfo = modInfo;
+			this.installed = installed;
+		}
+
+		boolean hasPreview() {
+			return modInfo.getPreviewImage() != null && modInfo.getPreviewImage().length() > 0;
+		}
+	}
+
+	/**
+	 * Row for either a category or a single mod, reused by the tree as it scrolls
+	 */
+	private class ModCell extends TreeCell<Object> {
+
+		private final CheckBox checkbox = new CheckBox();
+		private final ImageView thumbnailView = new ImageView();
+		private final Label nameLabel = new Label();
+		private final Label descriptionLabel = new Label();
+		private final Button previewButton = new Button("Preview");
+		private final HBox row = new HBox(checkbox, thumbnailView, nameLabel, descriptionLabel, previewButton);
+		private ModEntry entry;
+
+		ModCell() {
+			row.setAlignment(Pos.CENTER_LEFT);
+			checkbox.setPadding(leftPad20);
+			thumbnailView.setFitWidth(ThumbnailCache.SIZE);
+			thumbnailView.setFitHeight(ThumbnailCache.SIZE);
+			thumbnailView.setPreserveRatio(true);
+			nameLabel.setStyle("-fx-font-weight: bold");
+			nameLabel.setPadding(leftPad20);
+			descriptionLabel.setPadding(new Insets(5, 20, 5, 20));
+
+			// Only user clicks change installs, not the cell being reused for another mod
+			checkbox.setOnAction(event -> {
+				if (entry != null && entry.pendingInstall == null) {
+					toggle(entry, checkbox.isSelected());
+					checkbox.setSelected(entry.pendingInstall != null ? entry.pendingInstall : entry.installed);
+				}
+			});
+			previewButton.setOnAction(event -> {
+				if (entry != null) {
+					showPreview(entry);
+				}
+			});
+		}
+
+		@Override
+		protected void updateItem(Object item, boolean empty) {
+			super.updateItem(item, empty);
+
+			if (empty || item == null) {
+				entry = null;
+				setText(null);
+				setGraphic(null);
+			} else if (item instanceof ModEntry) {
+				entry = (ModEntry) item;
+				setText(null);
+				checkbox.setSelected(entry.pendingInstall != null ? entry.pendingInstall : entry.installed);
+				checkbox.setDisable(entry.pendingInstall != null);
+				nameLabel.setText(entry.modInfo.getName());
+				nameLabel.setTextFill(entry.problems == null ? Color.BLACK : Color.web("#993333"));
+				nameLabel.setTooltip(entry.problems == null ? null : new Tooltip(String.join("\n", entry.problems)));
+				descriptionLabel.setText(entry.modInfo.getDescription());
+				previewButton.setVisible(entry.hasPreview());
+				thumbnailView.setImage(null);
+				thumbnailView.setVisible(entry.hasPreview());
+				thumbnailView.setManaged(entry.hasPreview());
+				if (entry.hasPreview()) {
+					ModEntry requested = entry;
+					File previewFile = entry.modDir.toPath().resolve(entry.modInfo.getPreviewImage()).toFile();
+					thumbnailCache.load(previewFile, thumbnail -> {
+						if (entry == requested) {
+							thumbnailView.setImage(thumbnail);
+						}
+					});
+				}
+				setGraphic(row);
+			} else {
+				entry = null;
+				setText(item.toString());
+				setGraphic(null);
+			}
+		}
 	}
 
 }
@@ -16,4 +16,10 @@ public abstract class ModRollerScene {
 		this.completionHandler = completionHandler;
 	}
 
+	/**
+	 * Stops whatever the scene keeps running once it is left
+	 */
+	public void close() {
+	}
+
 }
@@ -1,6 +1,8 @@
 package net.bb2.modroller.scenes;
 
+import net.bb2.modroller.config.ModrollerConfig;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -11,48 +13,70 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class ModXmlApplicator {
 
 	private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-	private final XPathFactory xPathFactory = XPathFactory.newInstance();
 	private final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+	private final XmlPatchCache xmlPatchCache = XmlPatchCache.getInstance();
+	private final StreamingXmlApplicator streamingXmlApplicator = new StreamingXmlApplicator(xmlPatchCache);
 
 	public void apply(File xmlFile, File modDir, Map<String, String> xpathToReplacementFiles) throws Exception {
-		DocumentBuilder docBuilder = documentBuilderFactory.newDocumentBuilder();
-		Document targetDoc = docBuilder.parse(xmlFile);
-
+		List<XmlPatch> patches = new ArrayList<>();
 		for (Map.Entry<String, String> entry : xpathToReplacementFiles.entrySet()) {
-			XPathExpression xPathExpression = xPathFactory.newXPath().compile(entry.getKey());
+			patches.add(new XmlPatch(modDir, entry.getKey(), entry.getValue()));
+		}
+		applyAll(xmlFile, patches);
+	}
 
-			String replacementXml;
-			if (entry.getValue().startsWith("<")) {
-				replacementXml = entry.getValue();
+	/**
+	 * Applies replacements from any number of mods to one file, parsing and writing it only once.
+	 * Patches are applied in order, and as with a single mod nothing is written if any XPath fails to match.
+	 */
+	public void applyAll(File xmlFile, List<XmlPatch> patches) throws Exception {
+		List<String> xpaths = new ArrayList<>();
+		for (XmlPatch patch : patches) {
+			xpaths.add(patch.getXpath());
+		}
+		boolean streaming = ModrollerConfig.getInstance().isStreamingXml() && streamingXmlApplicator.supports(xpaths);
+
+		try (PhaseMetrics.Timer timer = startTimer(streaming)) {
+			long bytesRead = xmlFile.length();
+			if (streaming) {
+				streamingXmlApplicator.applyAll(xmlFile, patches);
 			} else {
-				replacementXml = Files.readString(modDir.toPath().resolve(entry.getValue()));
+				applyAllToDocument(xmlFile, patches);
 			}
-			Node replacementNode = documentBuilderFactory.newDocumentBuilder()
-					.parse(new ByteArrayInputStream(replacementXml.getBytes()))
-					.getDocumentElement();
-			replacementNode = targetDoc.importNode(replacementNode, true);
+			recordFile(timer, xmlFile, bytesRead);
+		}
+	}
+
+	private void applyAllToDocument(File xmlFile, List<XmlPatch> patches) throws Exception {
+		DocumentBuilder docBuilder = documentBuilderFactory.newDocumentBuilder();
+		Document targetDoc = docBuilder.parse(xmlFile);
+
+		for (XmlPatch patch : patches) {
+			XPathExpression xPathExpression = xmlPatchCache.getExpression(patch.getXpath());
+			Element replacementNode = xmlPatchCache.getFragment(patch.getModDir(), patch.getXpath(), patch.getReplacement());
 
 			NodeList nodeList = (NodeList)xPathExpression.evaluate(targetDoc, XPathConstants.NODESET);
 			if (nodeList.getLength() == 0) {
-				throw new Exception("Did not match " + entry.getKey() + " within " + xmlFile.getAbsolutePath());
+				throw new Exception("Did not match " + patch.getXpath() + " within " + xmlFile.getAbsolutePath());
 			}
 			for (int cursor = 0; cursor < nodeList.getLength(); cursor++) {
 				Node targetNode = nodeList.item(cursor);
-				targetNode.getParentNode().replaceChild(replacementNode, targetNode);
+				targetNode.getParentNode().replaceChild(targetDoc.importNode(replacementNode, true), targetNode);
 			}
 		}
 
@@ -60,11 +84,40 @@ public class ModXmlApplicator {
 	}
 
 	public void remove(File targetXmlFile, File originalXmlFile, Set<String> xpaths) throws Exception {
-		Document originalDoc = documentBuilderFactory.newDocumentBuilder().parse(originalXmlFile);
-		Document targetDoc = documentBuilderFactory.newDocumentBuilder().parse(targetXmlFile);
+		boolean streaming = ModrollerConfig.getInstance().isStreamingXml() && streamingXmlApplicator.supports(xpaths);
+
+		try (PhaseMetrics.Timer timer = startTimer(streaming)) {
+			long bytesRead = targetXmlFile.length() + originalXmlFile.length();
+			if (streaming) {
+				streamingXmlApplicator.remove(targetXmlFile, originalXmlFile, xpaths);
+			} else {
+				removeFromDocument(targetXmlFile, originalXmlFile, xpaths);
+			}
+			recordFile(timer, targetXmlFile, bytesRead);
+		}
+	}
+
+	/**
+	 * Rewrites of XML files are counted against the engine which did them
+	 */
+	private static PhaseMetrics.Timer startTimer(boolean streaming) {
+		return PhaseMetrics.getInstance().start(streaming ? "install.xml.streaming" : "install.xml.dom");
+	}
+
+	private static void recordFile(PhaseMetrics.Timer timer, File xmlFile, long bytesRead) {
+		long bytesWritten = xmlFile.length();
+		timer.getPhase().addBytesRead(bytesRead);
+		timer.getPhase().addBytesWritten(bytesWritten);
+		timer.getPhase().recordFile(xmlFile.getName(), timer.getElapsedNanos(), bytesWritten);
+	}
+
+	private void removeFromDocument(File targetXmlFile, File originalXmlFile, Set<String> xpaths) throws Exception {
+		DocumentBuilder docBuilder = documentBuilderFactory.newDocumentBuilder();
+		Document originalDoc = docBuilder.parse(originalXmlFile);
+		Document targetDoc = docBuilder.parse(targetXmlFile);
 
 		for (String xpath : xpaths) {
-			XPathExpression xPathExpression = xPathFactory.newXPath().compile(xpath);
+			XPathExpression xPathExpression = xmlPatchCache.getExpression(xpath);
 
 			NodeList originalNodeList = (NodeList)xPathExpression.evaluate(originalDoc, XPathConstants.NODESET);
 			NodeList targetNodeList = (NodeList)xPathExpression.evaluate(targetDoc, XPathConstants.NODESET);
@@ -93,8 +146,8 @@ public class ModXmlApplicator {
 
 	private void writeDocumentToFile(Document targetDoc, File xmlFile) throws Exception {
 		// Strip whitespace text nodes
-		XPath xp = xPathFactory.newXPath();
-		NodeList nl = (NodeList) xp.evaluate("//text()[normalize-space(.)='']", targetDoc, XPathConstants.NODESET);
+		XPathExpression whitespaceExpression = xmlPatchCache.getExpression("//text()[normalize-space(.)='']");
+		NodeList nl = (NodeList) whitespaceExpression.evaluate(targetDoc, XPathConstants.NODESET);
 		for (int i=0; i < nl.getLength(); ++i) {
 			Node node = nl.item(i);
 			node.getParentNode().removeChild(node);
@@ -104,13 +157,40 @@ public class ModXmlApplicator {
 		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
 		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "3"); // Weirdo Cyanide using 3-space indentation
 
+		// Write alongside and move into place, as the original may be hard linked into the backup store
+		Path tempFile = xmlFile.toPath().resolveSibling(xmlFile.getName() + ".modroller.tmp");
 		DOMSource source = new DOMSource(targetDoc);
-		FileWriter writer = new FileWriter(xmlFile);
+		FileWriter writer = new FileWriter(tempFile.toFile());
 		StreamResult result = new StreamResult(writer);
 		try {
 			transformer.transform(source, result);
 		} finally {
 			writer.close();
 		}
+		Files.move(tempFile, xmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static class XmlPatch {
+		private final File modDir;
+		private final String xpath;
+		private final String replacement; // Either inline XML or a file within the mod directory
+
+		public XmlPatch(File modDir, String xpath, String replacement) {
+			this.modDir = modDir;
+			this.xpath = xpath;
+			this.replacement = replacement;
+		}
+
+		public File getModDir() {
+			return modDir;
+		}
+
+		public String getXpath() {
+			return xpath;
+		}
+
+		public String getReplacement() {
+			return replacement;
+		}
 	}
 }
@@ -0,0 +1,264 @@
+package net.bb2.modroller.scenes;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import net.bb2.modroller.config.ModrollerConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall time, bytes and file counts of each phase of a run, such as extracting packages or patching XML.
+ *
+ * Phases are named like "packages.extract" and accumulate over the whole session, keeping the slowest files of
+ * each. Recording is a handful of atomic adds, so any thread may record into a phase. The totals so far are written
+ * to Modroller/metrics.json whenever a task reports, to compare runs across releases.
+ */
+public class PhaseMetrics {
+
+	private static final int SLOWEST_FILES = 10;
+
+	private static PhaseMetrics instance = new PhaseMetrics();
+	public static PhaseMetrics getInstance() {
+		return instance;
+	}
+
+	private final long startedAt = System.currentTimeMillis();
+	private final Map<String, Phase> phases = new LinkedHashMap<>();
+	private final Object saveLock = new Object();
+
+	private PhaseMetrics() {
+
+	}
+
+	public synchronized Phase getPhase(String name) {
+		return phases.computeIfAbsent(name, Phase::new);
+	}
+
+	/**
+	 * Starts timing a run of the named phase, which ends when the returned timer is closed
+	 */
+	public Timer start(String name) {
+		return new Timer(getPhase(name));
+	}
+
+	/**
+	 * Times a run of the named phase around the given action, for callers which have no use for the timer itself
+	 */
+	public <E extends Exception> void time(String name, Action<E> action) throws E {
+		Timer timer = start(name);
+		try {
+			action.run();
+		} finally {
+			timer.close();
+		}
+	}
+
+	public <T, E extends Exception> T time(String name, Call<T, E> call) throws E {
+		Timer timer = start(name);
+		try {
+			return call.call();
+		} finally {
+			timer.close();
+		}
+	}
+
+	/**
+	 * Logs a summary of each phase whose name starts with the given prefix, then writes the report
+	 */
+	public void report(Log log, String prefix) {
+		for (String line : summarise(prefix)) {
+			log.log(line);
+		}
+		try {
+			save(ModrollerConfig.getInstance().getMetricsFile());
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	public List<String> summarise(String prefix) {
+		List<Phase> matching = new ArrayList<>();
+		synchronized (this) {
+			for (Phase phase : phases.values()) {
+				if (phase.name.startsWith(prefix)) {
+					matching.add(phase);
+				}
+			}
+		}
+
+		List<String> lines = new ArrayList<>();
+		for (Phase phase : matching) {
+			StringBuilder line = new StringBuilder("Timing: ").append(phase.name).append(' ')
+					.append(formatNanos(phase.wallNanos.get()));
+			if (phase.files.get() > 0) {
+				line.append(", ").append(phase.files.get()).append(" files");
+			}
+			if (phase.bytesRead.get() > 0) {
+				line.append(", ").append(formatBytes(phase.bytesRead.get())).append(" read");
+			}
+			if (phase.bytesWritten.get() > 0) {
+				line.append(", ").append(formatBytes(phase.bytesWritten.get())).append(" written");
+			}
+			List<FileTiming> slowest = phase.getSlowestFiles();
+			if (!slowest.isEmpty()) {
+				line.append(", slowest ").append(slowest.get(0).path).append(' ').append(formatNanos(slowest.get(0).nanos));
+			}
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+
+	public void save(File metricsFile) throws IOException {
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("version", PhaseMetrics.class.getPackage().getImplementationVersion());
+		report.put("javaVersion", System.getProperty("java.version"));
+		report.put("os", System.getProperty("os.name"));
+		report.put("startedAt", startedAt);
+		report.put("savedAt", System.currentTimeMillis());
+
+		List<Map<String, Object>> phaseReports = new ArrayList<>();
+		synchronized (this) {
+			for (Phase phase : phases.values()) {
+				Map<String, Object> phaseReport = new LinkedHashMap<>();
+				phaseReport.put("name", phase.name);
+				phaseReport.put("runs", phase.runs.get());
+				phaseReport.put("wallMillis", TimeUnit.NANOSECONDS.toMillis(phase.wallNanos.get()));
+				phaseReport.put("files", phase.files.get());
+				phaseReport.put("bytesRead", phase.bytesRead.get());
+				phaseReport.put("bytesWritten", phase.bytesWritten.get());
+				List<Map<String, Object>> slowestFiles = new ArrayList<>();
+				for (FileTiming fileTiming : phase.getSlowestFiles()) {
+					Map<String, Object> fileReport = new LinkedHashMap<>();
+					fileReport.put("path", fileTiming.path);
+					fileReport.put("millis", TimeUnit.NANOSECONDS.toMillis(fileTiming.nanos));
+					fileReport.put("bytes", fileTiming.bytes);
+					slowestFiles.add(fileReport);
+				}
+				phaseReport.put("slowestFiles", slowestFiles);
+				phaseReports.add(phaseReport);
+			}
+		}
+		report.put("phases", phaseReports);
+
+		synchronized (saveLock) {
+			Path tempFile = metricsFile.toPath().resolveSibling(metricsFile.getName() + ".tmp");
+			new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(tempFile.toFile(), report);
+			Files.move(tempFile, metricsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private static String formatNanos(long nanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		return millis < 1000 ? millis + " ms" : String.format("%.1f s", millis / 1000.0);
+	}
+
+	private static String formatBytes(long bytes) {
+		if (bytes < 1024 * 1024) {
+			return String.format("%.1f KB", bytes / 1024.0);
+		}
+		return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}
+
+	public static class Phase {
+		private final String name;
+		private final AtomicLong runs = new AtomicLong();
+		private final AtomicLong wallNanos = new AtomicLong();
+		private final AtomicLong files = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong bytesWritten = new AtomicLong();
+		private final PriorityQueue<FileTiming> slowestFiles = new PriorityQueue<>(Comparator.comparingLong(fileTiming -> fileTiming.nanos));
+
+		private Phase(String name) {
+			this.name = name;
+		}
+
+		public void addBytesRead(long bytes) {
+			bytesRead.addAndGet(bytes);
+		}
+
+		public void addBytesWritten(long bytes) {
+			bytesWritten.addAndGet(bytes);
+		}
+
+		/**
+		 * Counts a file handled by the phase, keeping it as an outlier if it is one of the slowest so far
+		 */
+		public void recordFile(String path, long nanos, long bytes) {
+			files.incrementAndGet();
+			synchronized (slowestFiles) {
+				if (slowestFiles.size() < SLOWEST_FILES) {
+					slowestFiles.add(new FileTiming(path, nanos, bytes));
+				} else if (slowestFiles.peek().nanos < nanos) {
+					slowestFiles.poll();
+					slowestFiles.add(new FileTiming(path, nanos, bytes));
+				}
+			}
+		}
+
+		private List<FileTiming> getSlowestFiles() {
+			List<FileTiming> slowest;
+			synchronized (slowestFiles) {
+				slowest = new ArrayList<>(slowestFiles);
+			}
+			slowest.sort(Comparator.comparingLong((FileTiming fileTiming) -> fileTiming.nanos).reversed());
+			return slowest;
+		}
+	}
+
+	public static class Timer implements AutoCloseable {
+		private final Phase phase;
+		private final long start = System.nanoTime();
+
+		private Timer(Phase phase) {
+			this.phase = phase;
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		public long getElapsedNanos() {
+			return System.nanoTime() - start;
+		}
+
+		@Override
+		public void close() {
+			phase.runs.incrementAndGet();
+			phase.wallNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	@FunctionalInterface
+	public interface Action<E extends Exception> {
+		void run() throws E;
+	}
+
+	@FunctionalInterface
+	public interface Call<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	private static class FileTiming {
+		private final String path;
+		private final long nanos;
+		private final long bytes;
+
+		FileTiming(String path, long nanos, long bytes) {
+			this.path = path;
+			this.nanos = nanos;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -9,6 +9,8 @@ import javafx.scene.layout.GridPane;
 import javafx.stage.Stage;
 import net.bb2.modroller.config.ModrollerConfig;
 
+import java.io.IOException;
+
 public class ProcessPackagesScene extends ModRollerScene {
 
 
@@ -17,6 +19,7 @@ public class ProcessPackagesScene extends ModRollerScene {
 
 	private Label currentProgressLabel;
 	private TextArea textArea;
+	private final LogSink logSink;
 
 	public ProcessPackagesScene() {
 
@@ -42,6 +45,7 @@ public class ProcessPackagesScene extends ModRollerScene {
 		textArea.setPrefWidth(650);
 		textArea.setPrefHeight(400);
 		grid.addRow(4, textArea);
+		logSink = new LogSink(textArea);
 
 		this.scene = new Scene(grid, SceneDefaults.WIDTH, SceneDefaults.HEIGHT);
 	}
@@ -52,8 +56,19 @@ public class ProcessPackagesScene extends ModRollerScene {
 		process();
 	}
 
+	@Override
+	public void close() {
+		logSink.close();
+	}
+
 	private void process() {
-		ProcessPackagesTask processPackagesTask = new ProcessPackagesTask(ModrollerConfig.getInstance().getBb2Dir(), textArea, currentProgressLabel, progressBar, () -> {
+		try {
+			logSink.setLogFile(ModrollerConfig.getInstance().getLogFile());
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+
+		ProcessPackagesTask processPackagesTask = new ProcessPackagesTask(ModrollerConfig.getInstance().getBb2Dir(), new FxTaskListener(logSink, currentProgressLabel, progressBar), () -> {
 			if (completionHandler != null) {
 				completionHandler.onAction();
 			}
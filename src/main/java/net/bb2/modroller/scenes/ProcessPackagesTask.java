@@ -1,113 +1,388 @@
 package net.bb2.modroller.scenes;
 
-import javafx.application.Platform;
-import javafx.scene.control.Label;
-import javafx.scene.control.ProgressBar;
-import javafx.scene.control.TextArea;
-import javafx.scene.paint.Color;
-import net.bb2.modroller.OsCheck;
-
-import java.io.BufferedReader;
+import net.bb2.modroller.config.ExtractionManifest;
+import net.bb2.modroller.config.ModrollerConfig;
+import net.bb2.modroller.config.PackageIndex;
+import net.bb2.modroller.cpk.CpkArchive;
+import net.bb2.modroller.cpk.CpkEntry;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ProcessPackagesTask implements Runnable {
 
 	private final File baseDir;
-	private final TextArea textArea;
-	private final Label currentProgressLabel;
-	private final ProgressBar progressBar;
+	private final Collection<String> packageNames;
+	private final TaskListener listener;
 	private final Callback callback;
 
-	public ProcessPackagesTask(File bb2Dir, TextArea textArea, Label currentProgressLabel, ProgressBar progressBar, Callback callback) {
+	private final Set<PackageProgress> activePackages = new LinkedHashSet<>();
+	private final List<String> failedPackages = Collections.synchronizedList(new ArrayList<>());
+	private final AtomicInteger extractedEntries = new AtomicInteger();
+	private final AtomicInteger lastPermille = new AtomicInteger(-1);
+	private volatile boolean indexFailed;
+	private volatile int totalEntries;
+
+	private final Map<String, String> packageHashes = new ConcurrentHashMap<>();
+	private final PhaseMetrics metrics = PhaseMetrics.getInstance();
+	private ExtractionManifest manifest;
+	private File manifestFile;
+
+	public ProcessPackagesTask(File bb2Dir, TaskListener listener, Callback callback) {
+		this(bb2Dir, null, listener, callback);
+	}
+
+	/**
+	 * @param packageNames Names of the only packages to look at, such as those a game update just added, or null for all
+	 */
+	public ProcessPackagesTask(File bb2Dir, Collection<String> packageNames, TaskListener listener, Callback callback) {
 		this.baseDir = bb2Dir;
-		this.textArea = textArea;
-		this.currentProgressLabel = currentProgressLabel;
-		this.progressBar = progressBar;
+		this.packageNames = packageNames;
+		this.listener = listener;
 		this.callback = callback;
 	}
 
 	@Override
 	public void run() {
-		progressBar.setProgress(0f);
+		listener.setProgress(0);
 
 		File dataDir = baseDir.toPath().resolve("Data").toFile();
 		if (!dataDir.exists()) {
-			Platform.runLater(() -> {
-				currentProgressLabel.setText("Can not find data directory");
-			});
+			listener.setError("Can not find data directory");
 			return;
 		}
 		File packagesDir = dataDir.toPath().resolve("Packages").toFile();
 		if (!packagesDir.exists()) {
-			Platform.runLater(() -> {
-				currentProgressLabel.setText("Can not find packages directory");
-			});
+			listener.setError("Can not find packages directory");
+			return;
+		}
+
+		if (ModrollerConfig.getInstance().isLazyExtraction()) {
+			indexPackages(packagesDir);
 			return;
 		}
 
 		List<File> packageFiles = new ArrayList<>();
 		for (File packageFile : packagesDir.listFiles()) {
-			if (packageFile.getName().endsWith(".cpk")) {
+			if (packageFile.getName().endsWith(".cpk") && (packageNames == null || packageNames.contains(packageFile.getName()))) {
 				packageFiles.add(packageFile);
 			}
 		}
 
+		try {
+			manifestFile = ModrollerConfig.getInstance().getExtractionManifestFile();
+			manifest = ExtractionManifest.load(manifestFile);
+		} catch (IOException e) {
+			// An unreadable manifest only costs a full extraction
+			manifest = new ExtractionManifest();
+			System.err.println(e);
+		}
+
+		int threads = ModrollerConfig.getInstance().getExtractionThreads();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "package-extractor");
+			thread.setDaemon(true);
+			return thread;
+		});
 
+		List<Callable<Boolean>> checks = new ArrayList<>();
+		for (File packageFile : packageFiles) {
+			checks.add(() -> isAlreadyExtracted(packageFile));
+		}
 
-		File quickBms = OsCheck.IS_MAC_OS ? new File("assets/bms/quickbms") : new File("assets/bms/quickbms.exe");
-		if (!quickBms.exists()) {
-			Platform.runLater(() -> {
-				currentProgressLabel.setText("Can not find quickbms");
-			});
+		List<PackageProgress> packages = new ArrayList<>();
+		try {
+			List<Future<Boolean>> checkResults = metrics.time("packages.check", () -> executor.invokeAll(checks));
+			for (int cursor = 0; cursor < packageFiles.size(); cursor++) {
+				File packageFile = packageFiles.get(cursor);
+				try {
+					if (checkResults.get(cursor).get()) {
+						listener.log("Skipping " + packageFile.getName() + ", already extracted");
+						Files.delete(packageFile.toPath());
+						continue;
+					}
+
+					CpkArchive archive = CpkArchive.open(packageFile);
+					PackageProgress packageProgress = new PackageProgress(archive, packageFile.length(), packageFile.lastModified());
+					packages.add(packageProgress);
+					totalEntries += archive.getEntries().size();
+					putRecord(packageProgress, false);
+				} catch (IOException | ExecutionException e) {
+					failPackage(packageFile.getName(), e);
+				}
+			}
+			manifest.save(manifestFile);
+		} catch (IOException e) {
+			System.err.println(e);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
 			return;
 		}
-		File bb2Bms = new File("assets/bms/bloodbowl2.bms");
-		if (!bb2Bms.exists()) {
-			Platform.runLater(() -> {
-				currentProgressLabel.setText("Can not find bloodbowl2.bms");
+
+		try {
+			metrics.time("packages.extract", () -> {
+				// Entries are queued package by package, so only a handful of packages are in flight at once
+				for (PackageProgress packageProgress : packages) {
+					if (packageProgress.remaining.get() == 0) {
+						finishPackage(packageProgress);
+						continue;
+					}
+					for (CpkEntry entry : packageProgress.archive.getEntries()) {
+						executor.submit(() -> extractEntry(packageProgress, entry));
+					}
+				}
+
+				executor.shutdown();
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			});
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
 			return;
 		}
+		metrics.report(listener, "packages.");
 
+		if (!failedPackages.isEmpty()) {
+			listener.setError("Error while processing: " + String.join(", ", failedPackages));
+		}
+
+		listener.runLater(callback::onAction);
+	}
+
+	/**
+	 * @return Number of packages which could not be extracted once the task has run, or 1 if they could not be indexed
+	 */
+	public int getFailureCount() {
+		return indexFailed ? 1 : failedPackages.size();
+	}
+
+	/**
+	 * Only reads the packages' tables of contents and leaves them packed, so files are extracted as mods need them
+	 */
+	private void indexPackages(File packagesDir) {
 		try {
-			float cursor = 0;
-			for (File packageFile : packageFiles) {
-				Platform.runLater(() -> {
-					currentProgressLabel.setText("Processing " + packageFile.getName());
-				});
-				Process process = new ProcessBuilder(quickBms.getAbsolutePath(), "-o", bb2Bms.getAbsolutePath(), packageFile.getAbsolutePath(), baseDir.getAbsolutePath()).start();
-
-
-				BufferedReader processInput = new BufferedReader(new InputStreamReader(process.getInputStream()));
-				String s = null;
-				while ((s = processInput.readLine()) != null) {
-					final String currentline = s;
-					Platform.runLater(() -> {
-						textArea.appendText(currentline);
-						textArea.appendText("\n");
-					});
+			metrics.time("packages.index", () -> {
+				File indexFile = ModrollerConfig.getInstance().getPackageIndexFile();
+				PackageIndex index = PackageIndex.load(indexFile);
+				if (index.refresh(packagesDir)) {
+					index.save(indexFile);
 				}
+				listener.log("Indexed " + index.countEntries() + " files in " + index.getPackages().size() + " packages, they are extracted as mods need them");
+			});
+		} catch (IOException e) {
+			// Without an index mods can still replace files already in Data
+			indexFailed = true;
+			listener.setError("Error while indexing packages: " + e.getMessage());
+			System.err.println(e);
+		}
+		metrics.report(listener, "packages.");
+		listener.setProgress(1);
+
+		listener.runLater(callback::onAction);
+	}
+
+	private void extractEntry(PackageProgress packageProgress, CpkEntry entry) {
+		if (packageProgress.started.compareAndSet(false, true)) {
+			synchronized (activePackages) {
+				activePackages.add(packageProgress);
+			}
+			updateProgress(true);
+		}
 
-				Files.delete(packageFile.toPath());
-				cursor += 1f;
-				final float displayCursor = cursor;
-				Platform.runLater(() -> {
-					progressBar.setProgress(displayCursor / (float)packageFiles.size());
-				});
+		try {
+			if (!packageProgress.failed) {
+				listener.log("Extracting " + entry.getName());
+				long start = System.nanoTime();
+				Path target = packageProgress.archive.extract(entry, baseDir.toPath());
+				long size = Files.size(target);
+				PhaseMetrics.Phase phase = metrics.getPhase("packages.extract");
+				phase.addBytesRead(entry.getStoredSize());
+				phase.addBytesWritten(size);
+				phase.recordFile(entry.getName(), System.nanoTime() - start, size);
+			}
+		} catch (Exception e) {
+			// Remaining entries of this package are skipped but other packages carry on
+			packageProgress.failed = true;
+			listener.log("Error extracting " + entry.getName() + ": " + e.getMessage());
+			System.err.println(e);
+		}
+
+		packageProgress.extracted.incrementAndGet();
+		extractedEntries.incrementAndGet();
+		if (packageProgress.remaining.decrementAndGet() == 0) {
+			finishPackage(packageProgress);
+		} else {
+			updateProgress(false);
+		}
+	}
+
+	private void finishPackage(PackageProgress packageProgress) {
+		String packageName = packageProgress.archive.getFile().getName();
+		try {
+			packageProgress.archive.close();
+			if (packageProgress.failed) {
+				failedPackages.add(packageName);
+			} else {
+				putRecord(packageProgress, true);
+				manifest.save(manifestFile);
+				Files.delete(packageProgress.archive.getFile().toPath());
 			}
 		} catch (IOException e) {
-			Platform.runLater(() -> {
-				currentProgressLabel.setText("Error while processing: " + e.getMessage());
-				currentProgressLabel.setTextFill(Color.web("#993333"));
-			});
+			failPackage(packageName, e);
+		}
+
+		synchronized (activePackages) {
+			activePackages.remove(packageProgress);
+		}
+		updateProgress(true);
+	}
+
+	/**
+	 * A package is unchanged if it matches the manifest on size and modification time, or failing that on content hash.
+	 * Only packages whose size matches but whose modification time moved are hashed, and that hash is what the
+	 * manifest records for them, so freshly extracted packages are never read a second time just to be hashed.
+	 */
+	private boolean isAlreadyExtracted(File packageFile) throws IOException {
+		ExtractionManifest.PackageRecord record = manifest.getPackage(packageFile.getName());
+		if (record == null || !record.isComplete()) {
+			return false;
+		}
+
+		long size = packageFile.length();
+		long lastModified = packageFile.lastModified();
+		if (size != record.getSize()) {
+			return false;
+		}
+		if (lastModified != record.getLastModified()) {
+			metrics.getPhase("packages.check").addBytesRead(size);
+			String hash = hashFile(packageFile);
+			packageHashes.put(packageFile.getName(), hash);
+			if (!hash.equals(record.getHash())) {
+				return false;
+			}
+		}
+
+		for (String extractedFile : record.getFiles()) {
+			if (!baseDir.toPath().resolve(extractedFile).toFile().exists()) {
+				return false;
+			}
+		}
+
+		manifest.updateLastModified(packageFile.getName(), lastModified);
+		return true;
+	}
+
+	/**
+	 * Records a package in the manifest in memory only, callers save it once they are done
+	 */
+	private void putRecord(PackageProgress packageProgress, boolean complete) {
+		File packageFile = packageProgress.archive.getFile();
+		ExtractionManifest.PackageRecord record = new ExtractionManifest.PackageRecord();
+		record.setSize(packageProgress.size);
+		record.setLastModified(packageProgress.lastModified);
+		record.setHash(packageHashes.get(packageFile.getName()));
+		record.setComplete(complete);
+		List<String> files = new ArrayList<>();
+		for (CpkEntry entry : packageProgress.archive.getEntries()) {
+			files.add(entry.getName());
 		}
+		record.setFiles(files);
 
-		Platform.runLater(callback::onAction);
+		manifest.putPackage(packageFile.getName(), record);
+	}
+
+	private static String hashFile(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private void failPackage(String packageName, Exception e) {
+		failedPackages.add(packageName);
+		listener.log("Error while processing " + packageName + ": " + e.getMessage());
+		System.err.println(e);
+	}
+
+	private void updateProgress(boolean force) {
+		int total = totalEntries;
+		float progress = total == 0 ? 1f : extractedEntries.get() / (float)total;
+
+		// Only bother the listener's thread when the visible percentage moves
+		int permille = Math.round(progress * 1000);
+		if (!force && lastPermille.getAndSet(permille) == permille) {
+			return;
+		}
+
+		String labelText;
+		synchronized (activePackages) {
+			List<String> descriptions = new ArrayList<>();
+			for (PackageProgress packageProgress : activePackages) {
+				int percent = Math.round(packageProgress.extracted.get() * 100f / packageProgress.archive.getEntries().size());
+				descriptions.add(packageProgress.archive.getFile().getName() + " (" + percent + "%)");
+			}
+			labelText = descriptions.isEmpty() ? "" : "Processing " + String.join(", ", descriptions);
+		}
+		listener.runLater(() -> {
+			listener.setStatus(labelText);
+			listener.setProgress(progress);
+		});
+	}
+
+	private static class PackageProgress {
+		private final CpkArchive archive;
+		private final AtomicInteger remaining;
+		private final AtomicInteger extracted = new AtomicInteger();
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final long size;
+		private final long lastModified;
+		private volatile boolean failed;
+
+		PackageProgress(CpkArchive archive, long size, long lastModified) {
+			this.archive = archive;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.remaining = new AtomicInteger(archive.getEntries().size());
+		}
 	}
 
 }
@@ -0,0 +1,594 @@
+package net.bb2.modroller.scenes;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies and removes XPath replacements in a single streaming pass, without building a DOM of the target file.
+ *
+ * Only absolute child-axis paths are understood, each step being an element name or * followed by any number of
+ * [@attr] or [@attr='value'] predicates. Patches whose paths could match the same element, or one inside another,
+ * are also refused, as their outcome would depend on the order they are applied in. Use {@link #supports} first and
+ * fall back to the DOM engine otherwise.
+ *
+ * Everything outside the replaced elements is copied through event by event: the XML declaration, elements,
+ * attributes, text, comments and processing instructions keep their order and content, but not their exact spelling.
+ * As with the DOM engine, empty elements are written as &lt;a/&gt;, attributes in double quotes and characters
+ * escaped as the writer sees fit. Replacements are laid out with Cyanide's 3-space indentation at the depth they are
+ * spliced in at.
+ */
+public class StreamingXmlApplicator {
+
+	private static final int INDENT = 3;
+
+	private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+	private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+	private final XmlPatchCache xmlPatchCache;
+
+	public StreamingXmlApplicator(XmlPatchCache xmlPatchCache) {
+		this.xmlPatchCache = xmlPatchCache;
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+	}
+
+	public boolean supports(Collection<String> xpaths) {
+		List<LocationPath> paths = new ArrayList<>();
+		for (String xpath : xpaths) {
+			LocationPath path = LocationPath.parse(xpath);
+			if (path == null) {
+				return false;
+			}
+			for (LocationPath other : paths) {
+				if (path.overlaps(other)) {
+					return false;
+				}
+			}
+			paths.add(path);
+		}
+		return true;
+	}
+
+	public void applyAll(File xmlFile, List<ModXmlApplicator.XmlPatch> patches) throws Exception {
+		List<LocationPath> paths = new ArrayList<>();
+		List<Element> replacements = new ArrayList<>();
+		for (ModXmlApplicator.XmlPatch patch : patches) {
+			paths.add(parseSupported(patch.getXpath()));
+			replacements.add(xmlPatchCache.getFragment(patch.getModDir(), patch.getXpath(), patch.getReplacement()));
+		}
+
+		rewrite(xmlFile, paths, (patchIndex, matchIndex, reader, writer, depth) -> {
+			skipElement(reader);
+			writeElement(writer, replacements.get(patchIndex), depth);
+		}, matches -> {
+			for (int cursor = 0; cursor < matches.length; cursor++) {
+				if (matches[cursor] == 0) {
+					throw new Exception("Did not match " + patches.get(cursor).getXpath() + " within " + xmlFile.getAbsolutePath());
+				}
+			}
+		});
+	}
+
+	public void remove(File targetXmlFile, File originalXmlFile, Set<String> xpathSet) throws Exception {
+		List<String> xpaths = new ArrayList<>(xpathSet);
+		List<LocationPath> paths = new ArrayList<>();
+		for (String xpath : xpaths) {
+			paths.add(parseSupported(xpath));
+		}
+
+		List<List<Element>> originals = capture(originalXmlFile, paths);
+		for (int cursor = 0; cursor < originals.size(); cursor++) {
+			if (originals.get(cursor).isEmpty()) {
+				throw new Exception("Did not match " + xpaths.get(cursor) + " within " + originalXmlFile.getAbsolutePath());
+			}
+		}
+
+		rewrite(targetXmlFile, paths, (patchIndex, matchIndex, reader, writer, depth) -> {
+			skipElement(reader);
+			List<Element> originalElements = originals.get(patchIndex);
+			if (matchIndex < originalElements.size()) {
+				writeElement(writer, originalElements.get(matchIndex), depth);
+			}
+		}, matches -> {
+			for (int cursor = 0; cursor < matches.length; cursor++) {
+				if (matches[cursor] == 0) {
+					throw new Exception("Did not match " + xpaths.get(cursor) + " within " + targetXmlFile.getAbsolutePath());
+				}
+				if (matches[cursor] != originals.get(cursor).size()) {
+					throw new Exception("Different number of matches of " + xpaths.get(cursor) + " in " + originalXmlFile.getAbsolutePath() + " and " + targetXmlFile.getAbsolutePath());
+				}
+			}
+		});
+	}
+
+	private LocationPath parseSupported(String xpath) throws Exception {
+		LocationPath path = LocationPath.parse(xpath);
+		if (path == null) {
+			throw new Exception("XPath " + xpath + " is not supported by the streaming engine");
+		}
+		return path;
+	}
+
+	private interface MatchHandler {
+		/**
+		 * Called with the reader positioned on the start of a matched element, which must be consumed up to and
+		 * including its end tag
+		 */
+		void onMatch(int patchIndex, int matchIndex, XMLStreamReader reader, XMLStreamWriter writer, int depth) throws Exception;
+	}
+
+	private interface MatchValidator {
+		/**
+		 * Called once the whole file was copied, before it replaces the original, throwing to leave the original as it is
+		 */
+		void validate(int[] matches) throws Exception;
+	}
+
+	/**
+	 * Copies the file through a handler for matched elements, only replacing the file if every handler succeeds and
+	 * the validator accepts the number of elements matched by each path
+	 */
+	private void rewrite(File xmlFile, List<LocationPath> paths, MatchHandler handler, MatchValidator validator) throws Exception {
+		int[] matches = new int[paths.size()];
+		Path tempFile = xmlFile.toPath().resolveSibling(xmlFile.getName() + ".modroller.tmp");
+
+		try (InputStream input = Files.newInputStream(xmlFile.toPath())) {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+			String encoding = reader.getCharacterEncodingScheme() != null ? reader.getCharacterEncodingScheme() : "UTF-8";
+
+			try (OutputStream output = Files.newOutputStream(tempFile)) {
+				XMLStreamWriter writer = outputFactory.createXMLStreamWriter(output, encoding);
+				Deque<boolean[]> activeStack = new ArrayDeque<>();
+
+				int event = reader.getEventType();
+				while (true) {
+					switch (event) {
+						case XMLStreamConstants.START_DOCUMENT:
+							if (reader.getVersion() != null) {
+								// Written by hand, as the stream writer has no way to declare a document standalone
+								String declaration = "<?xml version=\"" + reader.getVersion() + "\" encoding=\"" + encoding + "\""
+										+ (reader.standaloneSet() ? " standalone=\"" + (reader.isStandalone() ? "yes" : "no") + "\"" : "")
+										+ "?>\n";
+								output.write(declaration.getBytes(Charset.forName(encoding)));
+							}
+							break;
+						case XMLStreamConstants.START_ELEMENT: {
+							String name = reader.getLocalName();
+							Map<String, String> attributes = readAttributes(reader);
+							int depth = activeStack.size() + 1;
+							boolean[] parentActive = activeStack.peek();
+
+							boolean[] active = new boolean[paths.size()];
+							int matchedPath = -1;
+							for (int cursor = 0; cursor < paths.size(); cursor++) {
+								if ((parentActive == null || parentActive[cursor]) && paths.get(cursor).matchesStep(depth - 1, name, attributes)) {
+									active[cursor] = true;
+									if (paths.get(cursor).length() == depth) {
+										matchedPath = cursor;
+									}
+								}
+							}
+
+							if (matchedPath >= 0) {
+								handler.onMatch(matchedPath, matches[matchedPath]++, reader, writer, depth);
+								break;
+							}
+
+							int next = reader.next();
+							if (next == XMLStreamConstants.END_ELEMENT) {
+								writer.writeEmptyElement(name);
+								writeAttributes(writer, attributes);
+								break;
+							}
+							writer.writeStartElement(name);
+							writeAttributes(writer, attributes);
+							activeStack.push(active);
+							event = next;
+							continue;
+						}
+						case XMLStreamConstants.END_ELEMENT:
+							writer.writeEndElement();
+							activeStack.pop();
+							break;
+						case XMLStreamConstants.CHARACTERS:
+						case XMLStreamConstants.SPACE:
+							writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+							break;
+						case XMLStreamConstants.CDATA:
+							writer.writeCData(reader.getText());
+							break;
+						case XMLStreamConstants.COMMENT:
+							writer.writeComment(reader.getText());
+							writeTopLevelNewline(writer, activeStack);
+							break;
+						case XMLStreamConstants.PROCESSING_INSTRUCTION:
+							writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+							writeTopLevelNewline(writer, activeStack);
+							break;
+						case XMLStreamConstants.DTD:
+							writer.writeDTD(reader.getText());
+							writer.writeCharacters("\n");
+							break;
+						case XMLStreamConstants.ENTITY_REFERENCE:
+							writer.writeEntityRef(reader.getLocalName());
+							break;
+						case XMLStreamConstants.END_DOCUMENT:
+							writer.writeCharacters("\n");
+							writer.writeEndDocument();
+							break;
+					}
+
+					if (!reader.hasNext()) {
+						break;
+					}
+					event = reader.next();
+				}
+
+				writer.flush();
+				writer.close();
+			} finally {
+				reader.close();
+			}
+
+			validator.validate(matches);
+		} catch (Exception e) {
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+
+		Files.move(tempFile, xmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeTopLevelNewline(XMLStreamWriter writer, Deque<boolean[]> activeStack) throws XMLStreamException {
+		// Whitespace outside the root element is not reported by the reader, so keep top level nodes on their own lines
+		if (activeStack.isEmpty()) {
+			writer.writeCharacters("\n");
+		}
+	}
+
+	/**
+	 * @return Copies of every element matched by each path, in document order
+	 */
+	private List<List<Element>> capture(File xmlFile, List<LocationPath> paths) throws Exception {
+		List<List<Element>> captured = new ArrayList<>();
+		for (int cursor = 0; cursor < paths.size(); cursor++) {
+			captured.add(new ArrayList<>());
+		}
+		Document document = documentBuilderFactory.newDocumentBuilder().newDocument();
+
+		try (InputStream input = Files.newInputStream(xmlFile.toPath())) {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+			try {
+				Deque<boolean[]> activeStack = new ArrayDeque<>();
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						String name = reader.getLocalName();
+						Map<String, String> attributes = readAttributes(reader);
+						int depth = activeStack.size() + 1;
+						boolean[] parentActive = activeStack.peek();
+
+						boolean[] active = new boolean[paths.size()];
+						int matchedPath = -1;
+						for (int cursor = 0; cursor < paths.size(); cursor++) {
+							if ((parentActive == null || parentActive[cursor]) && paths.get(cursor).matchesStep(depth - 1, name, attributes)) {
+								active[cursor] = true;
+								if (paths.get(cursor).length() == depth) {
+									matchedPath = cursor;
+								}
+							}
+						}
+
+						if (matchedPath >= 0) {
+							captured.get(matchedPath).add(readElement(reader, document));
+						} else {
+							activeStack.push(active);
+						}
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						activeStack.pop();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return captured;
+	}
+
+	private static Map<String, String> readAttributes(XMLStreamReader reader) {
+		Map<String, String> attributes = new LinkedHashMap<>();
+		for (int cursor = 0; cursor < reader.getAttributeCount(); cursor++) {
+			attributes.put(reader.getAttributeLocalName(cursor), reader.getAttributeValue(cursor));
+		}
+		return attributes;
+	}
+
+	private static void writeAttributes(XMLStreamWriter writer, Map<String, String> attributes) throws XMLStreamException {
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			writer.writeAttribute(attribute.getKey(), attribute.getValue());
+		}
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static Element readElement(XMLStreamReader reader, Document document) throws XMLStreamException {
+		Element element = document.createElement(reader.getLocalName());
+		for (Map.Entry<String, String> attribute : readAttributes(reader).entrySet()) {
+			element.setAttribute(attribute.getKey(), attribute.getValue());
+		}
+
+		while (true) {
+			int event = reader.next();
+			switch (event) {
+				case XMLStreamConstants.START_ELEMENT:
+					element.appendChild(readElement(reader, document));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					element.appendChild(document.createTextNode(reader.getText()));
+					break;
+				case XMLStreamConstants.CDATA:
+					element.appendChild(document.createCDATASection(reader.getText()));
+					break;
+				case XMLStreamConstants.COMMENT:
+					element.appendChild(document.createComment(reader.getText()));
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					return element;
+			}
+		}
+	}
+
+	/**
+	 * Writes an element the way the DOM engine's indenting transformer would, with the start tag at the current
+	 * output position and children indented relative to the given depth
+	 */
+	private static void writeElement(XMLStreamWriter writer, Element element, int depth) throws XMLStreamException {
+		List<Node> children = new ArrayList<>();
+		boolean hasText = false;
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().isEmpty()) {
+				continue;
+			}
+			hasText |= child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE;
+			children.add(child);
+		}
+
+		if (children.isEmpty()) {
+			writer.writeEmptyElement(element.getNodeName());
+			writeAttributes(writer, element);
+			return;
+		}
+
+		writer.writeStartElement(element.getNodeName());
+		writeAttributes(writer, element);
+		boolean indent = !hasText;
+		for (Node child : children) {
+			if (indent) {
+				writer.writeCharacters("\n" + " ".repeat(INDENT * depth));
+			}
+			switch (child.getNodeType()) {
+				case Node.ELEMENT_NODE:
+					writeElement(writer, (Element)child, depth + 1);
+					break;
+				case Node.TEXT_NODE:
+					writer.writeCharacters(child.getNodeValue());
+					break;
+				case Node.CDATA_SECTION_NODE:
+					writer.writeCData(child.getNodeValue());
+					break;
+				case Node.COMMENT_NODE:
+					writer.writeComment(child.getNodeValue());
+					break;
+			}
+		}
+		if (indent) {
+			writer.writeCharacters("\n" + " ".repeat(INDENT * (depth - 1)));
+		}
+		writer.writeEndElement();
+	}
+
+	private static void writeAttributes(XMLStreamWriter writer, Element element) throws XMLStreamException {
+		NamedNodeMap attributes = element.getAttributes();
+		for (int cursor = 0; cursor < attributes.getLength(); cursor++) {
+			Node attribute = attributes.item(cursor);
+			writer.writeAttribute(attribute.getNodeName(), attribute.getNodeValue());
+		}
+	}
+
+	static class LocationPath {
+		private final List<Step> steps;
+
+		private LocationPath(List<Step> steps) {
+			this.steps = steps;
+		}
+
+		int length() {
+			return steps.size();
+		}
+
+		boolean matchesStep(int index, String name, Map<String, String> attributes) {
+			return index < steps.size() && steps.get(index).matches(name, attributes);
+		}
+
+		/**
+		 * @return Whether some element could be matched by both paths, or by one path inside a match of the other
+		 */
+		boolean overlaps(LocationPath other) {
+			for (int cursor = 0; cursor < Math.min(steps.size(), other.steps.size()); cursor++) {
+				if (!steps.get(cursor).compatibleWith(other.steps.get(cursor))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return The parsed path, or null if it uses anything outside the supported subset
+		 */
+		static LocationPath parse(String xpath) {
+			String path = xpath.trim();
+			if (!path.startsWith("/") || path.startsWith("//")) {
+				return null;
+			}
+
+			List<Step> steps = new ArrayList<>();
+			int cursor = 1;
+			while (cursor <= path.length()) {
+				int nameEnd = cursor;
+				while (nameEnd < path.length() && isNameChar(path.charAt(nameEnd))) {
+					nameEnd++;
+				}
+				String name = path.substring(cursor, nameEnd);
+				if (name.isEmpty() || (!name.equals("*") && (name.contains("*") || !Character.isLetter(name.charAt(0)) && name.charAt(0) != '_'))) {
+					return null;
+				}
+
+				Map<String, String> predicates = new LinkedHashMap<>();
+				cursor = nameEnd;
+				while (cursor < path.length() && path.charAt(cursor) == '[') {
+					int predicateEnd = parsePredicate(path, cursor + 1, predicates);
+					if (predicateEnd < 0) {
+						return null;
+					}
+					cursor = predicateEnd;
+				}
+				steps.add(new Step(name, predicates));
+
+				if (cursor == path.length()) {
+					return new LocationPath(steps);
+				}
+				if (path.charAt(cursor) != '/' || cursor + 1 == path.length() || path.charAt(cursor + 1) == '/') {
+					return null;
+				}
+				cursor++;
+			}
+			return null;
+		}
+
+		/**
+		 * Parses [@name] or [@name='value'] starting just after the opening bracket
+		 *
+		 * @return Index after the closing bracket, or -1 if unsupported
+		 */
+		private static int parsePredicate(String path, int cursor, Map<String, String> predicates) {
+			cursor = skipSpaces(path, cursor);
+			if (cursor >= path.length() || path.charAt(cursor) != '@') {
+				return -1;
+			}
+			int nameStart = ++cursor;
+			while (cursor < path.length() && isNameChar(path.charAt(cursor)) && path.charAt(cursor) != '*') {
+				cursor++;
+			}
+			String name = path.substring(nameStart, cursor);
+			if (name.isEmpty() || predicates.containsKey(name)) {
+				return -1;
+			}
+
+			cursor = skipSpaces(path, cursor);
+			String value = null;
+			if (cursor < path.length() && path.charAt(cursor) == '=') {
+				cursor = skipSpaces(path, cursor + 1);
+				if (cursor >= path.length() || (path.charAt(cursor) != '\'' && path.charAt(cursor) != '"')) {
+					return -1;
+				}
+				char quote = path.charAt(cursor);
+				int valueEnd = path.indexOf(quote, cursor + 1);
+				if (valueEnd < 0) {
+					return -1;
+				}
+				value = path.substring(cursor + 1, valueEnd);
+				cursor = skipSpaces(path, valueEnd + 1);
+			}
+
+			if (cursor >= path.length() || path.charAt(cursor) != ']') {
+				return -1;
+			}
+			predicates.put(name, value);
+			return cursor + 1;
+		}
+
+		private static int skipSpaces(String path, int cursor) {
+			while (cursor < path.length() && Character.isWhitespace(path.charAt(cursor))) {
+				cursor++;
+			}
+			return cursor;
+		}
+
+		private static boolean isNameChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':' || c == '*';
+		}
+	}
+
+	static class Step {
+		private final String name;
+		private final Map<String, String> predicates; // Attribute name to required value, or null if it need only exist
+
+		Step(String name, Map<String, String> predicates) {
+			this.name = name;
+			this.predicates = predicates;
+		}
+
+		boolean matches(String elementName, Map<String, String> attributes) {
+			if (!name.equals("*") && !name.equals(elementName)) {
+				return false;
+			}
+			for (Map.Entry<String, String> predicate : predicates.entrySet()) {
+				String value = attributes.get(predicate.getKey());
+				if (value == null || (predicate.getValue() != null && !predicate.getValue().equals(value))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean compatibleWith(Step other) {
+			if (!name.equals("*") && !other.name.equals("*") && !name.equals(other.name)) {
+				return false;
+			}
+			for (Map.Entry<String, String> predicate : predicates.entrySet()) {
+				String otherValue = other.predicates.get(predicate.getKey());
+				if (predicate.getValue() != null && otherValue != null && !predicate.getValue().equals(otherValue)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
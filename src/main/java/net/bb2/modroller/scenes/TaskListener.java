@@ -0,0 +1,24 @@
+package net.bb2.modroller.scenes;
+
+/**
+ * Where a long running task reports to, so the same task can drive either the UI or a console.
+ *
+ * Any method may be called from any thread, it is up to the implementation to hand the update to its own thread.
+ */
+public interface TaskListener extends Log {
+
+	void setStatus(String status);
+
+	void setError(String error);
+
+	/**
+	 * @param progress Fraction done, from 0 to 1
+	 */
+	void setProgress(double progress);
+
+	/**
+	 * Runs the action on the listener's own thread, such as a completion callback which touches the UI
+	 */
+	void runLater(Runnable action);
+
+}
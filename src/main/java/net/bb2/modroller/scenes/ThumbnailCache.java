@@ -0,0 +1,59 @@
+package net.bb2.modroller.scenes;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import org.eclipse.jgit.util.LRUMap;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Downscaled preview images for the mod list, decoded off the FX thread and kept in a bounded LRU cache
+ */
+public class ThumbnailCache {
+
+	public static final int SIZE = 64;
+	private static final int CAPACITY = 128;
+
+	private final Map<File, Image> thumbnails = new LRUMap<>(CAPACITY, CAPACITY);
+	private final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+		Thread thread = new Thread(runnable, "thumbnail-loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Hands the thumbnail of an image file to the consumer on the FX thread, straight away if it is cached
+	 */
+	public void load(File imageFile, Consumer<Image> consumer) {
+		Image cached;
+		synchronized (thumbnails) {
+			cached = thumbnails.get(imageFile);
+		}
+		if (cached != null) {
+			consumer.accept(cached);
+			return;
+		}
+
+		if (!imageFile.exists()) {
+			// Not fetched yet in a partial clone of the mod repo, which only happens on preview or install
+			return;
+		}
+
+		executor.submit(() -> {
+			// Decoding at the requested size keeps only the small image in memory
+			Image thumbnail = new Image(imageFile.toURI().toString(), SIZE, SIZE, true, true);
+			if (thumbnail.isError()) {
+				System.err.println(thumbnail.getException());
+				return;
+			}
+			synchronized (thumbnails) {
+				thumbnails.put(imageFile, thumbnail);
+			}
+			Platform.runLater(() -> consumer.accept(thumbnail));
+		});
+	}
+}
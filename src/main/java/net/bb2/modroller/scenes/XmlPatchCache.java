@@ -0,0 +1,159 @@
+package net.bb2.modroller.scenes;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiled XPath expressions and parsed replacement fragments, kept until the mod repo is updated and re-read only when
+ * a replacement file's size or modification time moves. Each call returns an object only its caller uses, so callers
+ * never need to synchronize.
+ */
+public class XmlPatchCache {
+
+	// A file modified this close to being read may have changed again without its modification time moving
+	private static final long RACY_MILLIS = 2000;
+
+	private static XmlPatchCache instance = new XmlPatchCache();
+	public static XmlPatchCache getInstance() {
+		return instance;
+	}
+
+	private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+	private final XPathFactory xPathFactory = XPathFactory.newInstance();
+
+	// Expressions are not thread safe, so each thread compiles its own, dropped once the generation moves on
+	private final AtomicInteger generation = new AtomicInteger();
+	private final ThreadLocal<ThreadExpressions> expressions = ThreadLocal.withInitial(ThreadExpressions::new);
+	private final Map<String, CachedFragment> fragments = new ConcurrentHashMap<>();
+
+	private XmlPatchCache() {
+		try {
+			// Fully build cached fragments up front rather than lazily on first read
+			documentBuilderFactory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+		} catch (ParserConfigurationException e) {
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * @return Expression compiled for the calling thread only
+	 */
+	public XPathExpression getExpression(String xpath) throws XPathExpressionException {
+		ThreadExpressions threadExpressions = expressions.get();
+		int currentGeneration = generation.get();
+		if (threadExpressions.generation != currentGeneration) {
+			threadExpressions.expressions.clear();
+			threadExpressions.generation = currentGeneration;
+		}
+
+		XPathExpression expression = threadExpressions.expressions.get(xpath);
+		if (expression == null) {
+			synchronized (xPathFactory) {
+				expression = xPathFactory.newXPath().compile(xpath);
+			}
+			threadExpressions.expressions.put(xpath, expression);
+		}
+		return expression;
+	}
+
+	/**
+	 * @param replacement Either inline XML or the name of a file within the mod directory
+	 * @return Copy of the cached fragment for the caller to use as it likes
+	 */
+	public Element getFragment(File modDir, String xpath, String replacement) throws Exception {
+		return findFragment(modDir, xpath, replacement).copy();
+	}
+
+	private CachedFragment findFragment(File modDir, String xpath, String replacement) throws Exception {
+		String key = modDir.getAbsolutePath() + '\0' + xpath + '\0' + replacement;
+		CachedFragment cached = fragments.get(key);
+
+		if (replacement.startsWith("<")) {
+			// Inline XML is its own key
+			if (cached == null) {
+				cached = new CachedFragment(parse(replacement.getBytes(StandardCharsets.UTF_8)), null, 0, 0, 0);
+				fragments.put(key, cached);
+			}
+			return cached;
+		}
+
+		Path replacementFile = modDir.toPath().resolve(replacement);
+		BasicFileAttributes attributes = Files.readAttributes(replacementFile, BasicFileAttributes.class);
+		long size = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		if (cached != null && cached.size == size && cached.lastModified == lastModified && cached.readAt - lastModified > RACY_MILLIS) {
+			return cached;
+		}
+
+		long readAt = System.currentTimeMillis();
+		byte[] content = Files.readAllBytes(replacementFile);
+		MessageDigest digest = Constants.newMessageDigest();
+		String hash = ObjectId.fromRaw(digest.digest(content)).name();
+		// Touched but unchanged, such as by a checkout, keeps the parsed fragment
+		Element fragment = cached != null && hash.equals(cached.hash) ? cached.fragment : parse(content);
+		cached = new CachedFragment(fragment, hash, size, lastModified, readAt);
+		fragments.put(key, cached);
+		return cached;
+	}
+
+	private Element parse(byte[] content) throws Exception {
+		synchronized (documentBuilderFactory) {
+			return documentBuilderFactory.newDocumentBuilder()
+					.parse(new ByteArrayInputStream(content))
+					.getDocumentElement();
+		}
+	}
+
+	public void invalidate() {
+		generation.incrementAndGet();
+		fragments.clear();
+	}
+
+	private static class ThreadExpressions {
+		private final Map<String, XPathExpression> expressions = new HashMap<>();
+		private int generation;
+	}
+
+	private static class CachedFragment {
+		private final Element fragment;
+		private final String hash;
+		private final long size;
+		private final long lastModified;
+		private final long readAt;
+
+		CachedFragment(Element fragment, String hash, long size, long lastModified, long readAt) {
+			this.fragment = fragment;
+			this.hash = hash;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.readAt = readAt;
+		}
+
+		/**
+		 * Even reading a DOM is not thread safe, so copies of a fragment are made one at a time
+		 */
+		Element copy() {
+			synchronized (fragment) {
+				return (Element)fragment.cloneNode(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package net.bb2.modroller.config;
+
+import org.eclipse.jgit.internal.storage.pack.BinaryDelta;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeltaAssetTest {
+
+	// Magic and original blob id ahead of the JGit delta
+	private static final int HEADER_LENGTH = 4 + 20;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void appliesSmallChangesToALargeFile() throws IOException {
+		// Over a megabyte, so unchanged stretches are copied in several full 64K copy instructions
+		byte[] original = random(1, 1024 * 1024 + 123);
+		byte[] modified = original.clone();
+		for (int cursor = 1000; cursor < modified.length; cursor += 200 * 1024) {
+			modified[cursor] ^= 0x55;
+		}
+		byte[] inserted = random(2, 300);
+		byte[] withInsert = new byte[modified.length + inserted.length];
+		System.arraycopy(modified, 0, withInsert, 0, 500000);
+		System.arraycopy(inserted, 0, withInsert, 500000, inserted.length);
+		System.arraycopy(modified, 500000, withInsert, 500000 + inserted.length, modified.length - 500000);
+
+		assertRoundTrip(original, withInsert);
+	}
+
+	@Test
+	public void appliesUnrelatedContentAsInserts() throws IOException {
+		assertRoundTrip(random(3, 5000), random(4, 7000));
+	}
+
+	@Test
+	public void appliesTruncationAndEmptyResult() throws IOException {
+		byte[] original = random(5, 100000);
+		assertRoundTrip(original, Arrays.copyOf(original, 40000));
+		assertRoundTrip(original, new byte[0]);
+	}
+
+	@Test
+	public void recordsTheOriginal() throws IOException {
+		File originalFile = write("original", random(6, 10000));
+		File deltaFile = temp.getRoot().toPath().resolve("modified" + DeltaAsset.SUFFIX).toFile();
+		DeltaAsset.create(originalFile, write("modified", random(7, 12000)), deltaFile);
+
+		assertEquals(BackupStore.hash(originalFile), DeltaAsset.getOriginalId(deltaFile));
+		assertEquals(12000, DeltaAsset.getResultSize(deltaFile));
+	}
+
+	@Test
+	public void refusesAnotherOriginalOfTheSameSize() throws IOException {
+		byte[] original = random(8, 20000);
+		byte[] other = original.clone();
+		other[10000] ^= 1;
+		File originalFile = write("original", original);
+		File otherFile = write("other", other);
+		File deltaFile = temp.getRoot().toPath().resolve("modified" + DeltaAsset.SUFFIX).toFile();
+		DeltaAsset.create(originalFile, write("modified", random(9, 20000)), deltaFile);
+
+		Path target = temp.getRoot().toPath().resolve("target");
+		try {
+			DeltaAsset.apply(otherFile, BackupStore.hash(otherFile), deltaFile, target);
+			fail("Applied over another original");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("different original"));
+		}
+		assertFalse(Files.exists(target));
+	}
+
+	@Test
+	public void refusesDeltasWithoutHeader() throws IOException {
+		File deltaFile = write("old" + DeltaAsset.SUFFIX, new byte[] { 10, 10, 10 });
+		try {
+			DeltaAsset.getResultSize(deltaFile);
+			fail("Read a delta without a header");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private void assertRoundTrip(byte[] original, byte[] modified) throws IOException {
+		File originalFile = write("original", original);
+		File modifiedFile = write("modified", modified);
+		File deltaFile = temp.getRoot().toPath().resolve("modified" + DeltaAsset.SUFFIX).toFile();
+
+		DeltaAsset.create(originalFile, modifiedFile, deltaFile);
+		assertEquals(modified.length, DeltaAsset.getResultSize(deltaFile));
+
+		Path target = temp.getRoot().toPath().resolve("target");
+		DeltaAsset.apply(originalFile, BackupStore.hash(originalFile), deltaFile, target);
+		assertArrayEquals(modified, Files.readAllBytes(target));
+
+		// The streaming applier must agree with JGit's own reading of the same instructions
+		byte[] delta = Files.readAllBytes(deltaFile.toPath());
+		assertArrayEquals(modified, BinaryDelta.apply(original, Arrays.copyOfRange(delta, HEADER_LENGTH, delta.length)));
+	}
+
+	private File write(String name, byte[] content) throws IOException {
+		Path path = temp.getRoot().toPath().resolve(name);
+		Files.write(path, content);
+		return path.toFile();
+	}
+
+	private static byte[] random(long seed, int length) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,120 @@
+package net.bb2.modroller.config;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class InstallJournalTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private Path dataDir;
+	private File journalFile;
+	private BackupStore backupStore;
+
+	@Before
+	public void setUp() throws IOException {
+		dataDir = temp.newFolder("Data").toPath();
+		journalFile = temp.getRoot().toPath().resolve("journal.jsonl").toFile();
+		backupStore = BackupStore.open(temp.newFolder("backup"));
+		Files.createDirectories(dataDir.resolve("Strings"));
+		write("Strings/skills.xml", "original skills");
+		write("pitch.dds", "original pitch");
+	}
+
+	@Test
+	public void recoversAfterACrash() throws IOException {
+		InstallJournal journal = InstallJournal.begin(journalFile, backupStore, dataDir, Arrays.asList("ModA", "ModB"));
+		journal.record("Strings/skills.xml");
+		write("Strings/skills.xml", "modded skills");
+		journal.record("ball.dds");
+		write("ball.dds", "new ball");
+		journal.record("Strings/skills.xml");
+		write("Strings/skills.xml", "modded skills again");
+		// The process died while writing the next entry, before touching its file
+		Files.write(journalFile.toPath(), "{\"path\":\"pitch.d".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		List<String> installedMods = InstallJournal.recover(journalFile, backupStore, dataDir);
+
+		assertEquals(Arrays.asList("ModA", "ModB"), installedMods);
+		assertEquals("original skills", read("Strings/skills.xml"));
+		assertEquals("original pitch", read("pitch.dds"));
+		assertFalse(Files.exists(dataDir.resolve("ball.dds")));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void recoversBeforeAnythingWasRecorded() throws IOException {
+		Files.write(journalFile.toPath(), "{\"installedMo".getBytes(StandardCharsets.UTF_8));
+
+		assertNull(InstallJournal.recover(journalFile, backupStore, dataDir));
+		assertEquals("original skills", read("Strings/skills.xml"));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void rollsBack() throws IOException {
+		InstallJournal journal = InstallJournal.begin(journalFile, backupStore, dataDir, Arrays.asList("ModA"));
+		journal.record("pitch.dds");
+		write("pitch.dds", "modded pitch");
+		journal.record("ball.dds");
+		write("ball.dds", "new ball");
+
+		assertEquals(Arrays.asList("ModA"), journal.rollback());
+		assertEquals("original pitch", read("pitch.dds"));
+		assertFalse(Files.exists(dataDir.resolve("ball.dds")));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void commitKeepsChanges() throws IOException {
+		InstallJournal journal = InstallJournal.begin(journalFile, backupStore, dataDir, Arrays.asList("ModA"));
+		journal.record("pitch.dds");
+		write("pitch.dds", "modded pitch");
+		journal.commit();
+
+		assertEquals("modded pitch", read("pitch.dds"));
+		assertFalse(journalFile.exists());
+	}
+
+	@Test
+	public void refusesToBeginOverAnUnfinishedJournal() throws IOException {
+		InstallJournal.begin(journalFile, backupStore, dataDir, Arrays.asList("ModA")).record("pitch.dds");
+		try {
+			InstallJournal.begin(journalFile, backupStore, dataDir, Arrays.asList("ModB"));
+			fail("Began over an unfinished journal");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(Arrays.asList("ModA"), InstallJournal.recover(journalFile, backupStore, dataDir));
+	}
+
+	private void write(String dataPath, String content) throws IOException {
+		// Replaced rather than written into, as installs do, so hard linked backups keep their content
+		Path target = dataDir.resolve(dataPath);
+		Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+		Files.write(tempFile, content.getBytes(StandardCharsets.UTF_8));
+		Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private String read(String dataPath) throws IOException {
+		return new String(Files.readAllBytes(dataDir.resolve(dataPath)), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,131 @@
+package net.bb2.modroller.config;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartialModRepoTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private Git upstream;
+	private Path upstreamDir;
+	private File modRepoDir;
+
+	@Before
+	public void setUp() throws Exception {
+		upstreamDir = temp.newFolder("upstream").toPath();
+		upstream = Git.init().setDirectory(upstreamDir.toFile()).call();
+		StoredConfig config = upstream.getRepository().getConfig();
+		config.setBoolean("uploadpack", null, "allowfilter", true);
+		config.setBoolean("uploadpack", null, "allowreachablesha1inwant", true);
+		config.save();
+
+		write("GrassPitch/mod.json", "{\"name\":\"Grass pitch\"}");
+		write("GrassPitch/pitch.dds", "grass");
+		write("GrassPitch/lines.dds", "white lines");
+		write("SnowPitch/mod.json", "{\"name\":\"Snow pitch\"}");
+		write("SnowPitch/pitch.dds", "snow");
+		commit("Add pitches");
+
+		modRepoDir = temp.getRoot().toPath().resolve("bb2modrepo").toFile();
+		PartialModRepo.cloneRepository(upstreamDir.toUri().toString(), modRepoDir);
+	}
+
+	@After
+	public void tearDown() {
+		upstream.close();
+	}
+
+	@Test
+	public void clonesOnlyModInfo() throws Exception {
+		assertTrue(PartialModRepo.isPartial(modRepoDir));
+		assertEquals("{\"name\":\"Grass pitch\"}", read("GrassPitch/mod.json"));
+		assertFalse(Files.exists(modRepoDir.toPath().resolve("GrassPitch/pitch.dds")));
+
+		PartialModRepo.materialize(modRepoDir, "GrassPitch");
+		assertEquals("grass", read("GrassPitch/pitch.dds"));
+		assertFalse(Files.exists(modRepoDir.toPath().resolve("SnowPitch/pitch.dds")));
+	}
+
+	@Test
+	public void updatesOnlyOnceApplied() throws Exception {
+		PartialModRepo.materialize(modRepoDir, "GrassPitch");
+		write("GrassPitch/pitch.dds", "greener grass");
+		commit("Greener grass");
+
+		PartialModRepo.Update update = PartialModRepo.fetchUpdate(modRepoDir);
+		assertEquals("grass", read("GrassPitch/pitch.dds"));
+
+		update.apply();
+		assertEquals("greener grass", read("GrassPitch/pitch.dds"));
+		assertNoStagedFiles();
+	}
+
+	@Test
+	public void deletesFilesRemovedUpstream() throws Exception {
+		PartialModRepo.materialize(modRepoDir, "GrassPitch");
+		upstream.rm().addFilepattern("GrassPitch/lines.dds").addFilepattern("SnowPitch/mod.json").addFilepattern("SnowPitch/pitch.dds").call();
+		commit("Remove lines and the snow pitch");
+
+		PartialModRepo.Update update = PartialModRepo.fetchUpdate(modRepoDir);
+		assertEquals("white lines", read("GrassPitch/lines.dds"));
+		assertTrue(Files.exists(modRepoDir.toPath().resolve("SnowPitch")));
+
+		update.apply();
+		assertFalse(Files.exists(modRepoDir.toPath().resolve("GrassPitch/lines.dds")));
+		assertEquals("grass", read("GrassPitch/pitch.dds"));
+		assertFalse(Files.exists(modRepoDir.toPath().resolve("SnowPitch")));
+		assertNoStagedFiles();
+	}
+
+	@Test
+	public void discardLeavesTheCheckoutAlone() throws Exception {
+		PartialModRepo.materialize(modRepoDir, "GrassPitch");
+		write("GrassPitch/pitch.dds", "greener grass");
+		upstream.rm().addFilepattern("GrassPitch/lines.dds").call();
+		commit("Greener grass without lines");
+
+		PartialModRepo.fetchUpdate(modRepoDir).discard();
+		assertEquals("grass", read("GrassPitch/pitch.dds"));
+		assertEquals("white lines", read("GrassPitch/lines.dds"));
+		assertNoStagedFiles();
+	}
+
+	private void write(String path, String content) throws IOException {
+		Path file = upstreamDir.resolve(path);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void commit(String message) throws Exception {
+		upstream.add().addFilepattern(".").call();
+		upstream.commit().setMessage(message).call();
+	}
+
+	private String read(String path) throws IOException {
+		return new String(Files.readAllBytes(modRepoDir.toPath().resolve(path)), StandardCharsets.UTF_8);
+	}
+
+	private void assertNoStagedFiles() throws IOException {
+		try (Stream<Path> files = Files.walk(modRepoDir.toPath())) {
+			assertFalse(files.anyMatch(file -> file.getFileName().toString().contains(".modroller.")));
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package net.bb2.modroller.cpk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class CpkArchiveTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void extractsStoredPackage() throws IOException {
+		Map<String, byte[]> files = sampleFiles();
+		File packageFile = writePackage(CpkArchive.VERSION_STORED, files);
+
+		try (CpkArchive archive = CpkArchive.open(packageFile)) {
+			assertEquals(CpkArchive.VERSION_STORED, archive.getVersion());
+			assertEquals("test", archive.getArchiveName());
+			assertExtracts(archive, files);
+		}
+	}
+
+	@Test
+	public void extractsCompressedPackage() throws IOException {
+		Map<String, byte[]> files = sampleFiles();
+		File packageFile = writePackage(CpkArchive.VERSION_COMPRESSED, files);
+
+		try (CpkArchive archive = CpkArchive.open(packageFile)) {
+			assertEquals(CpkArchive.VERSION_COMPRESSED, archive.getVersion());
+			assertExtracts(archive, files);
+		}
+	}
+
+	@Test
+	public void extractedPackageCanBeDeleted() throws IOException {
+		File packageFile = writePackage(CpkArchive.VERSION_COMPRESSED, sampleFiles());
+
+		try (CpkArchive archive = CpkArchive.open(packageFile)) {
+			assertExtracts(archive, sampleFiles());
+		}
+		Files.delete(packageFile.toPath());
+		assertFalse(packageFile.exists());
+	}
+
+	@Test
+	public void refusesEntriesOutsideOfOutputDirectory() throws IOException {
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		files.put("../escaped.txt", "escaped".getBytes(StandardCharsets.UTF_8));
+		files.put("Data\\..\\..\\escaped.txt", "escaped".getBytes(StandardCharsets.UTF_8));
+		File packageFile = writePackage(CpkArchive.VERSION_COMPRESSED, files);
+		Path outputDir = temp.newFolder("out").toPath();
+
+		try (CpkArchive archive = CpkArchive.open(packageFile)) {
+			for (CpkEntry entry : archive.getEntries()) {
+				try {
+					archive.resolveTarget(outputDir, entry);
+					fail("Resolved " + entry.getName());
+				} catch (IOException e) {
+					// Expected
+				}
+				try {
+					archive.extract(entry, outputDir);
+					fail("Extracted " + entry.getName());
+				} catch (IOException e) {
+					// Expected
+				}
+			}
+		}
+		assertFalse(Files.exists(outputDir.resolveSibling("escaped.txt")));
+	}
+
+	@Test
+	public void rejectsUnknownVersion() throws IOException {
+		File packageFile = writePackage(0x1234, sampleFiles());
+		try (CpkArchive archive = CpkArchive.open(packageFile)) {
+			fail("Opened version " + Integer.toHexString(archive.getVersion()));
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private void assertExtracts(CpkArchive archive, Map<String, byte[]> files) throws IOException {
+		Path outputDir = temp.newFolder().toPath();
+		assertEquals(files.size(), archive.getEntries().size());
+		for (CpkEntry entry : archive.getEntries()) {
+			archive.extract(entry, outputDir);
+		}
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			Path extracted = outputDir.resolve(file.getKey().replace('\\', '/'));
+			assertArrayEquals(file.getKey(), file.getValue(), Files.readAllBytes(extracted));
+		}
+	}
+
+	private static Map<String, byte[]> sampleFiles() {
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		files.put("Data\\Strings\\english.xml", "<strings><s id=\"1\">Touchdown</s></strings>".getBytes(StandardCharsets.UTF_8));
+		files.put("Data/empty.txt", new byte[0]);
+
+		// Larger than the reader's buffer, so inflating needs several reads
+		byte[] texture = new byte[300 * 1024];
+		new Random(2).nextBytes(texture);
+		files.put("Data/Textures/pitch.dds", texture);
+		return files;
+	}
+
+	/**
+	 * Writes a package in the layout described by assets/bms/bloodbowl2.bms
+	 */
+	private File writePackage(int version, Map<String, byte[]> files) throws IOException {
+		boolean compressed = version == CpkArchive.VERSION_COMPRESSED;
+		int tableLength = files.size() * (4 + 4 + 0x200);
+
+		// A stored deflate block has the same length whatever it holds, so the offsets past the table are known up front
+		int dataStart = 4 + 4 + 0x200 + (compressed ? 4 + deflate(new byte[tableLength], Deflater.NO_COMPRESSION).length : tableLength);
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		ByteBuffer table = ByteBuffer.allocate(tableLength).order(ByteOrder.LITTLE_ENDIAN);
+		for (Map.Entry<String, byte[]> file : files.entrySet()) {
+			byte[] stored = compressed ? deflate(file.getValue(), Deflater.DEFAULT_COMPRESSION) : file.getValue();
+			table.putInt(stored.length);
+			table.putInt(dataStart + data.size());
+			table.put(name(file.getKey()));
+			if (compressed) {
+				data.write(littleEndian(file.getValue().length));
+			}
+			data.write(stored);
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.write(littleEndian(version));
+		output.write(littleEndian(files.size()));
+		output.write(name("test"));
+		if (compressed) {
+			byte[] compressedTable = deflate(table.array(), Deflater.NO_COMPRESSION);
+			output.write(littleEndian(compressedTable.length));
+			output.write(compressedTable);
+		} else {
+			output.write(table.array());
+		}
+		assertEquals(dataStart, output.size());
+		output.write(data.toByteArray());
+
+		File packageFile = temp.newFile();
+		Files.write(packageFile.toPath(), output.toByteArray());
+		return packageFile;
+	}
+
+	private static byte[] name(String name) {
+		byte[] padded = new byte[0x200];
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, padded, 0, bytes.length);
+		return padded;
+	}
+
+	private static byte[] littleEndian(int value) {
+		return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+	}
+
+	private static byte[] deflate(byte[] bytes, int level) {
+		Deflater deflater = new Deflater(level);
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			output.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return output.toByteArray();
+	}
+}
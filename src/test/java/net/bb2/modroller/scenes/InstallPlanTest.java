@@ -0,0 +1,182 @@
+package net.bb2.modroller.scenes;
+
+import net.bb2.modroller.config.ModInfo;
+import net.bb2.modroller.config.ModrollerConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstallPlanTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private final List<String> log = Collections.synchronizedList(new ArrayList<>());
+	private final Map<File, ModInfo> repoMods = new LinkedHashMap<>();
+	private File bb2Dir;
+	private File modRepoDir;
+	private boolean lazyExtraction;
+	private Path dataDir;
+
+	@Before
+	public void setUp() throws IOException {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		bb2Dir = config.getBb2Dir();
+		modRepoDir = config.getModRepoDir();
+		lazyExtraction = config.isLazyExtraction();
+
+		File gameDir = temp.newFolder("BB2");
+		dataDir = gameDir.toPath().resolve("Data");
+		Files.createDirectories(dataDir.resolve("Pitch"));
+		Files.write(dataDir.resolve("Pitch/pitch.dds"), bytes("original pitch"));
+		config.setBb2Dir(gameDir);
+		config.setModRepoDir(temp.newFolder("bb2modrepo"));
+		config.setLazyExtraction(false);
+
+		addMod("GrassPitch", "grass pitch", "ball.dds", "new ball");
+		addMod("SnowPitch", "snow pitch", null, null);
+	}
+
+	@After
+	public void tearDown() {
+		ModrollerConfig config = ModrollerConfig.getInstance();
+		config.setBb2Dir(bb2Dir);
+		config.setModRepoDir(modRepoDir);
+		config.setLazyExtraction(lazyExtraction);
+	}
+
+	@Test
+	public void plansEachFileOnce() throws IOException {
+		InstallPlan plan = new ModApplicator(log::add).plan(repoMods, new LinkedHashSet<>(Arrays.asList("GrassPitch", "SnowPitch")));
+
+		assertEquals(Arrays.asList("GrassPitch", "SnowPitch"), names(plan.getInstalling()));
+		assertEquals(Arrays.asList(
+				"COPY Pitch/ball.dds from GrassPitch/ball.dds",
+				"BACKUP Pitch/pitch.dds",
+				"COPY Pitch/pitch.dds from SnowPitch/pitch.dds"), describe(plan));
+	}
+
+	@Test
+	public void uninstallCopiesFromTheRemainingMod() throws Exception {
+		new ModApplicator(log::add).applyTransaction(repoMods, new LinkedHashSet<>(Arrays.asList("GrassPitch", "SnowPitch")));
+		assertEquals("snow pitch", read("Pitch/pitch.dds"));
+
+		ModApplicator modApplicator = new ModApplicator(log::add);
+		InstallPlan plan = modApplicator.plan(repoMods, Collections.singleton("SnowPitch"));
+		assertEquals(Arrays.asList("GrassPitch"), names(plan.getUninstalling()));
+		assertEquals(Arrays.asList("SnowPitch"), plan.getFinalModNames());
+		// The pitch is copied from the mod still installed rather than restored and replaced again
+		assertEquals(Arrays.asList(
+				"RESTORE Pitch/ball.dds from backup",
+				"COPY Pitch/pitch.dds from SnowPitch/pitch.dds"), describe(plan));
+
+		modApplicator.execute(plan);
+		assertEquals("snow pitch", read("Pitch/pitch.dds"));
+		assertEquals(Collections.singleton("SnowPitch"), ModrollerConfig.getInstance().getInstalledMods());
+	}
+
+	@Test
+	public void failedInstallRollsBack() throws Exception {
+		// Fails after the ball and pitch are already in Data
+		addMod("BrokenPitch", "broken pitch", "missing.dds", null);
+
+		ModApplicator modApplicator = new ModApplicator(log::add);
+		InstallPlan plan = modApplicator.plan(repoMods, new LinkedHashSet<>(Arrays.asList("GrassPitch", "BrokenPitch")));
+		try {
+			modApplicator.execute(plan);
+			fail("Installed a mod with a missing file");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		assertEquals("original pitch", read("Pitch/pitch.dds"));
+		assertFalse(Files.exists(dataDir.resolve("Pitch/ball.dds")));
+		assertFalse(Files.exists(dataDir.resolve("Pitch/missing.dds")));
+		assertTrue(ModrollerConfig.getInstance().getInstalledMods().isEmpty());
+		assertFalse(ModrollerConfig.getInstance().getInstallJournalFile().exists());
+		assertFalse(new ModApplicator(log::add).recoverInterruptedTransaction());
+	}
+
+	@Test
+	public void refusesAPlanMadeForOtherInstalledMods() throws Exception {
+		ModApplicator modApplicator = new ModApplicator(log::add);
+		InstallPlan plan = modApplicator.plan(repoMods, Collections.singleton("SnowPitch"));
+		modApplicator.applyTransaction(repoMods, Collections.singleton("GrassPitch"));
+
+		try {
+			modApplicator.execute(plan);
+			fail("Carried out a stale plan");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals("grass pitch", read("Pitch/pitch.dds"));
+	}
+
+	/**
+	 * Adds a mod replacing the pitch, and optionally listing another file beside it, which is left out without content
+	 */
+	private File addMod(String dirName, String pitch, String extraName, String extraContent) throws IOException {
+		File modDir = ModrollerConfig.getInstance().getModRepoDir().toPath().resolve(dirName).toFile();
+		Files.createDirectories(modDir.toPath());
+		ModInfo modInfo = new ModInfo();
+		modInfo.setName(dirName);
+		Files.write(modDir.toPath().resolve("pitch.dds"), bytes(pitch));
+		modInfo.getFiles().put("pitch.dds", "Pitch");
+		if (extraName != null) {
+			if (extraContent != null) {
+				Files.write(modDir.toPath().resolve(extraName), bytes(extraContent));
+			}
+			modInfo.getFiles().put(extraName, "Pitch");
+		}
+		repoMods.put(modDir, modInfo);
+		return modDir;
+	}
+
+	private static List<String> names(List<File> modDirs) {
+		List<String> names = new ArrayList<>();
+		for (File modDir : modDirs) {
+			names.add(modDir.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * @return Each operation without its size
+	 */
+	private static List<String> describe(InstallPlan plan) {
+		List<String> descriptions = new ArrayList<>();
+		for (InstallPlan.Operation operation : plan.getOperations()) {
+			String description = operation.toString();
+			descriptions.add(description.substring(0, description.lastIndexOf(" (")));
+		}
+		return descriptions;
+	}
+
+	private String read(String dataPath) throws IOException {
+		return new String(Files.readAllBytes(dataDir.resolve(dataPath)), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+}
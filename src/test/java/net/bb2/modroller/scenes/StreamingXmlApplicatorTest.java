@@ -0,0 +1,226 @@
+package net.bb2.modroller.scenes;
+
+import net.bb2.modroller.config.ModrollerConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingXmlApplicatorTest {
+
+	private static final String ORIGINAL = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+			+ "<Skills>\n"
+			+ "   <!-- Cyanide's layout -->\n"
+			+ "   <Skill id=\"1\" name=\"Block\"><Cost>20</Cost></Skill>\n"
+			+ "   <Skill id=\"2\" name=\"Dodge\"><Cost>20</Cost></Skill>\n"
+			+ "   <Skill id=\"3\" name=\"Sure Hands\" group=\"general\"><Cost>20</Cost><Empty></Empty></Skill>\n"
+			+ "   <Races>\n"
+			+ "      <Race name=\"Orc\"><Speed>5</Speed></Race>\n"
+			+ "      <Race name=\"Elf\"><Speed>7</Speed></Race>\n"
+			+ "   </Races>\n"
+			+ "   <Note>Fish &amp; chips</Note>\n"
+			+ "</Skills>\n";
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private final XmlPatchCache xmlPatchCache = XmlPatchCache.getInstance();
+	private final StreamingXmlApplicator streaming = new StreamingXmlApplicator(xmlPatchCache);
+	private boolean streamingXml;
+	private File modDir;
+
+	@Before
+	public void setUp() throws IOException {
+		streamingXml = ModrollerConfig.getInstance().isStreamingXml();
+		xmlPatchCache.invalidate();
+		modDir = temp.newFolder("mod");
+		Files.write(modDir.toPath().resolve("elf.xml"), "<Race name=\"Elf\"><Speed>8</Speed><Skill>Catch</Skill></Race>".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After
+	public void tearDown() {
+		ModrollerConfig.getInstance().setStreamingXml(streamingXml);
+		xmlPatchCache.invalidate();
+	}
+
+	@Test
+	public void appliesLikeTheDomEngine() throws Exception {
+		List<ModXmlApplicator.XmlPatch> patches = Arrays.asList(
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Skill[@id='2']", "<Skill id=\"2\" name=\"Dodge\"><Cost>30</Cost></Skill>"),
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Skill[@id='3']", "<Skill id=\"3\" name=\"Sure Hands\"/>"),
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Races/*[@name='Elf']", "elf.xml"),
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Note", "<Note>Pie &amp; mash</Note>"));
+		assertTrue(streaming.supports(xpaths(patches)));
+
+		File streamed = writeOriginal("streamed.xml");
+		streaming.applyAll(streamed, patches);
+
+		File dom = writeOriginal("dom.xml");
+		ModrollerConfig.getInstance().setStreamingXml(false);
+		new ModXmlApplicator().applyAll(dom, patches);
+
+		assertSameDocument(dom, streamed);
+		assertTrue(new String(Files.readAllBytes(streamed.toPath()), StandardCharsets.UTF_8).contains("<Cost>30</Cost>"));
+	}
+
+	@Test
+	public void replacesEveryMatch() throws Exception {
+		List<ModXmlApplicator.XmlPatch> patches = Collections.singletonList(
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Races/Race/Speed", "<Speed>6</Speed>"));
+
+		File streamed = writeOriginal("streamed.xml");
+		streaming.applyAll(streamed, patches);
+
+		File dom = writeOriginal("dom.xml");
+		ModrollerConfig.getInstance().setStreamingXml(false);
+		new ModXmlApplicator().applyAll(dom, patches);
+
+		assertSameDocument(dom, streamed);
+	}
+
+	@Test
+	public void removesBackToTheOriginal() throws Exception {
+		List<ModXmlApplicator.XmlPatch> patches = Arrays.asList(
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Skill[@id='1']", "<Skill id=\"1\" name=\"Block\"><Cost>10</Cost></Skill>"),
+				new ModXmlApplicator.XmlPatch(modDir, "/Skills/Races/Race[@name='Elf']", "elf.xml"));
+		Set<String> xpaths = new LinkedHashSet<>(xpaths(patches));
+		File original = writeOriginal("original.xml");
+
+		File streamed = writeOriginal("streamed.xml");
+		streaming.applyAll(streamed, patches);
+		streaming.remove(streamed, original, xpaths);
+		assertSameDocument(original, streamed);
+
+		File dom = writeOriginal("dom.xml");
+		ModrollerConfig.getInstance().setStreamingXml(false);
+		ModXmlApplicator domApplicator = new ModXmlApplicator();
+		domApplicator.applyAll(dom, patches);
+		domApplicator.remove(dom, original, xpaths);
+		assertSameDocument(dom, streamed);
+	}
+
+	@Test
+	public void refusesOverlappingPaths() {
+		assertFalse(streaming.supports(Arrays.asList("/Skills/Skill", "/Skills/Skill[@id='1']")));
+		assertFalse(streaming.supports(Arrays.asList("/Skills/*", "/Skills/Skill")));
+		assertFalse(streaming.supports(Arrays.asList("/Skills/Races", "/Skills/Races/Race[@name='Orc']")));
+		assertTrue(streaming.supports(Arrays.asList("/Skills/Skill[@id='1']", "/Skills/Skill[@id='2']")));
+		assertTrue(streaming.supports(Arrays.asList("/Skills/Skill", "/Skills/Races")));
+		assertFalse(streaming.supports(Arrays.asList("/Skills/Skill[@id='2']", "/Skills/Skill[@group]")));
+	}
+
+	@Test
+	public void refusesUnsupportedPaths() throws Exception {
+		for (String xpath : Arrays.asList("//Skill", "Skills/Skill", "/Skills/Skill[1]", "/Skills/Skill/text()",
+				"/Skills/Skill[@id='1' or @id='2']", "/Skills//Race", "/Skills/Skill[Cost='20']")) {
+			assertFalse(xpath, streaming.supports(Collections.singletonList(xpath)));
+
+			File target = writeOriginal("target.xml");
+			try {
+				streaming.applyAll(target, Collections.singletonList(new ModXmlApplicator.XmlPatch(modDir, xpath, "<Skill/>")));
+				fail("Applied " + xpath);
+			} catch (Exception e) {
+				// Expected
+			}
+			assertUnchanged(target);
+		}
+	}
+
+	@Test
+	public void leavesFileAloneIfAPathDoesNotMatch() throws Exception {
+		File target = writeOriginal("target.xml");
+		try {
+			streaming.applyAll(target, Arrays.asList(
+					new ModXmlApplicator.XmlPatch(modDir, "/Skills/Skill[@id='1']", "<Skill id=\"1\"/>"),
+					new ModXmlApplicator.XmlPatch(modDir, "/Skills/Skill[@id='9']", "<Skill id=\"9\"/>")));
+			fail("Applied a path which does not match");
+		} catch (Exception e) {
+			// Expected
+		}
+		assertUnchanged(target);
+	}
+
+	@Test
+	public void leavesFileAloneIfMatchCountsDiffer() throws Exception {
+		File original = writeOriginal("original.xml");
+		File target = temp.newFile("target.xml");
+		String extraSkill = ORIGINAL.replace("<Races>", "<Skill id=\"4\" name=\"Guard\"/>\n   <Races>");
+		Files.write(target.toPath(), extraSkill.getBytes(StandardCharsets.UTF_8));
+
+		try {
+			streaming.remove(target, original, Collections.singleton("/Skills/Skill"));
+			fail("Removed with different numbers of matches");
+		} catch (Exception e) {
+			// Expected
+		}
+		assertArrayEquals(extraSkill.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(target.toPath()));
+	}
+
+	private File writeOriginal(String name) throws IOException {
+		File file = temp.getRoot().toPath().resolve(name).toFile();
+		Files.write(file.toPath(), ORIGINAL.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private void assertUnchanged(File file) throws IOException {
+		assertArrayEquals(ORIGINAL.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file.toPath()));
+	}
+
+	private static List<String> xpaths(List<ModXmlApplicator.XmlPatch> patches) {
+		String[] xpaths = new String[patches.size()];
+		for (int cursor = 0; cursor < xpaths.length; cursor++) {
+			xpaths[cursor] = patches.get(cursor).getXpath();
+		}
+		return Arrays.asList(xpaths);
+	}
+
+	/**
+	 * The engines lay files out differently, so documents are compared ignoring whitespace between elements
+	 */
+	private static void assertSameDocument(File expected, File actual) throws Exception {
+		Document expectedDocument = parse(expected);
+		Document actualDocument = parse(actual);
+		assertTrue("Expected " + new String(Files.readAllBytes(expected.toPath()), StandardCharsets.UTF_8)
+						+ "\nbut was " + new String(Files.readAllBytes(actual.toPath()), StandardCharsets.UTF_8),
+				expectedDocument.getDocumentElement().isEqualNode(actualDocument.getDocumentElement()));
+	}
+
+	private static Document parse(File file) throws Exception {
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+		stripWhitespace(document.getDocumentElement());
+		document.normalizeDocument();
+		return document;
+	}
+
+	private static void stripWhitespace(Node node) {
+		NodeList children = node.getChildNodes();
+		for (int cursor = children.getLength() - 1; cursor >= 0; cursor--) {
+			Node child = children.item(cursor);
+			if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty()) {
+				node.removeChild(child);
+			} else {
+				stripWhitespace(child);
+			}
+		}
+	}
+}